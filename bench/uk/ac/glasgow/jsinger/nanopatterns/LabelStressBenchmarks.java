@@ -0,0 +1,86 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.EmptyVisitor;
+import org.objectweb.asm.tree.MethodNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH stress benchmark for label tracking, on a generated method
+ * shaped like a parser state machine: one big tableswitch inside
+ * a loop, with every case jumping back to the loop head.
+ * Time per method should grow linearly with the label count.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LabelStressBenchmarks {
+
+	private static final EmptyVisitor EMPTY = new EmptyVisitor();
+
+	/** number of switch cases, each with its own label **/
+	@Param({ "100", "1000", "10000" })
+	public int cases;
+
+	private MethodNode method;
+
+	@Setup
+	public void generate() {
+		method = new MethodNode(Opcodes.ACC_STATIC, "parse", "(I)I", null,
+				null);
+		Label head = new Label();
+		Label exit = new Label();
+		Label[] targets = new Label[cases];
+		for (int i = 0; i < cases; i++) {
+			targets[i] = new Label();
+		}
+		method.visitCode();
+		method.visitLabel(head);
+		method.visitVarInsn(Opcodes.ILOAD, 0);
+		method.visitTableSwitchInsn(0, cases - 1, exit, targets);
+		for (int i = 0; i < cases; i++) {
+			method.visitLabel(targets[i]);
+			method.visitIincInsn(0, 1);
+			method.visitVarInsn(Opcodes.ILOAD, 0);
+			method.visitJumpInsn(Opcodes.IFGE, head);
+			method.visitJumpInsn(Opcodes.GOTO, exit);
+		}
+		method.visitLabel(exit);
+		method.visitVarInsn(Opcodes.ILOAD, 0);
+		method.visitInsn(Opcodes.IRETURN);
+		method.visitMaxs(1, 1);
+		method.visitEnd();
+	}
+
+	@Benchmark
+	public boolean controlFlow() {
+		ControlFlowPatternSpotter spotter = new ControlFlowPatternSpotter(EMPTY);
+		method.instructions.accept(spotter);
+		return spotter.isLoopingCode();
+	}
+
+	@Benchmark
+	public boolean fused() {
+		FusedPatternSpotter spotter = new FusedPatternSpotter(EMPTY, "Parser",
+				method.name, method.desc);
+		method.instructions.accept(spotter);
+		return spotter.getNumInstrs() > 0;
+	}
+
+}
@@ -0,0 +1,95 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark for whole-jar scanning, from opening the jar to
+ * handing each row to the result writer (which discards it).
+ * The primary score is jars/sec; the methods counter reports
+ * methods/sec. Divide the -prof gc normalised allocation rate by
+ * the jar's method count for bytes allocated per method.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmarks {
+
+	/** rows reported during the iteration, as an extra score **/
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Rows implements ResultWriter {
+
+		public long methods;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			methods = 0;
+		}
+
+		public void write(PatternList resultList) {
+			methods++;
+		}
+
+		public void flush() {
+		}
+
+		public void close() {
+		}
+	}
+
+	/** per thread, as the options carry the thread's writer **/
+	@State(Scope.Thread)
+	public static class Scan {
+
+		/** jar path, relative to the project root **/
+		@Param("lib/asm-3.1.jar")
+		public String jar;
+
+		@Param({ "false", "true" })
+		public boolean stream;
+
+		@Param({ "false", "true" })
+		public boolean mmap;
+
+		AnalysisOptions options;
+
+		@Setup
+		public void open() throws IOException {
+			options = new AnalysisOptions();
+			options.stream = stream;
+			options.mmap = mmap;
+			options.hierarchy.addJar(jar);
+		}
+
+		@TearDown
+		public void close() {
+			options.hierarchy.close();
+		}
+	}
+
+	@Benchmark
+	public void scanJar(Scan scan, Rows rows) {
+		scan.options.writer = rows;
+		new TestPatternSpotter(TestPatternSpotter.ANALYSE_JAR_FILE, scan.jar,
+				scan.options).scanJar(scan.jar);
+	}
+
+}
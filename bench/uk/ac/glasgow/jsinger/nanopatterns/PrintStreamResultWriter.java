@@ -0,0 +1,40 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.PrintStream;
+
+/**
+ * The text report as it was printed before TextResultWriter: one
+ * PrintStream call per field, so a row costs dozens of calls (and,
+ * on an autoflushing stream, writes). Kept only as the baseline
+ * for SpotterBenchmark -report.
+ */
+public class PrintStreamResultWriter implements ResultWriter {
+
+	private final PrintStream out;
+
+	public PrintStreamResultWriter(PrintStream out) {
+		this.out = out;
+	}
+
+	public void write(PatternList resultList) {
+		out.print("" + resultList.className + " " + resultList.methodName
+				+ " " + resultList.methodDesc + " " + resultList.numInstrs);
+		for (int pattern = 0; pattern < PatternList.getColumnCount(); pattern++) {
+			if (resultList.get(pattern)) {
+				out.print(" 1");
+			} else {
+				out.print(" 0");
+			}
+		}
+		out.println("");
+	}
+
+	public void flush() {
+		out.flush();
+	}
+
+	public void close() {
+		out.flush();
+	}
+
+}
@@ -0,0 +1,192 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Times the per-method analysis over every method in the given
+ * jar files, comparing the separate pattern spotters with the
+ * fused single-pass spotter.
+ * Classes are parsed up front, so only analyseMethod is timed.
+ * With -report, times writing the text report instead, comparing
+ * printing each row to System.out (PrintStreamResultWriter) with
+ * TextResultWriter. The report goes to standard output (redirect
+ * it to a file or /dev/null) and the timings to standard error.
+ * A plain main rather than a JMH benchmark: after ant bench-compile,
+ * run it with build/bench, build and lib/*.jar on the classpath.
+ */
+public class SpotterBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: java SpotterBenchmark [-iterations N] [-report] jarfile...");
+			System.exit(-1);
+		}
+
+		int iterations = 10;
+		boolean report = false;
+		List<ClassNode> classes = new ArrayList<ClassNode>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-iterations") && i + 1 < args.length) {
+				iterations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-report")) {
+				report = true;
+			} else {
+				loadJar(args[i], classes);
+			}
+		}
+
+		if (report) {
+			benchmarkReport(classes, iterations);
+			return;
+		}
+
+		int methods = checkAgreement(classes);
+
+		// warm up both paths before timing either
+		runSpotters(classes);
+		runFused(classes);
+
+		long spotters = 0;
+		long fused = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			runSpotters(classes);
+			spotters += System.nanoTime() - start;
+			start = System.nanoTime();
+			runFused(classes);
+			fused += System.nanoTime() - start;
+		}
+
+		report("separate spotters", methods, iterations, spotters);
+		report("fused spotter", methods, iterations, fused);
+		System.out.printf("speedup: %.2fx%n", (double) spotters / fused);
+	}
+
+	private static void loadJar(String path, List<ClassNode> classes)
+			throws IOException {
+		JarFile jar = new JarFile(path);
+		try {
+			Enumeration<JarEntry> enums = jar.entries();
+			while (enums.hasMoreElements()) {
+				JarEntry file = enums.nextElement();
+				if (!file.isDirectory() && file.getName().endsWith(".class")) {
+					ClassReader cr = new ClassReader(jar.getInputStream(file));
+					ClassNode cn = new ClassNode();
+					cr.accept(cn, ClassReader.SKIP_DEBUG);
+					classes.add(cn);
+				}
+			}
+		} finally {
+			jar.close();
+		}
+	}
+
+	/**
+	 * checks both implementations agree on every method,
+	 * and returns the number of methods analysed
+	 */
+	private static int checkAgreement(List<ClassNode> classes) {
+		int methods = 0;
+		int mismatches = 0;
+		for (ClassNode cn : classes) {
+			for (Object m : cn.methods) {
+				PatternList expected = TestPatternSpotter.analyseMethodWithSpotters(
+						cn, (MethodNode) m);
+				PatternList actual = TestPatternSpotter.analyseMethod(cn,
+						(MethodNode) m);
+				if (expected == null) {
+					continue;
+				}
+				methods++;
+				if (actual == null || !expected.sameResults(actual)) {
+					mismatches++;
+					System.err.println("mismatch: " + cn.name + " "
+							+ expected.methodName + " " + expected.methodDesc);
+				}
+			}
+		}
+		System.out.println(methods + " methods, " + mismatches + " mismatches");
+		return methods;
+	}
+
+	private static void runSpotters(List<ClassNode> classes) {
+		for (ClassNode cn : classes) {
+			for (Object m : cn.methods) {
+				TestPatternSpotter.analyseMethodWithSpotters(cn,
+						(MethodNode) m);
+			}
+		}
+	}
+
+	private static void runFused(List<ClassNode> classes) {
+		for (ClassNode cn : classes) {
+			for (Object m : cn.methods) {
+				TestPatternSpotter.analyseMethod(cn,
+						(MethodNode) m);
+			}
+		}
+	}
+
+	private static void benchmarkReport(List<ClassNode> classes,
+			int iterations) throws IOException {
+		List<PatternList> rows = new ArrayList<PatternList>();
+		for (ClassNode cn : classes) {
+			for (Object m : cn.methods) {
+				PatternList resultList = TestPatternSpotter.analyseMethod(cn,
+						(MethodNode) m);
+				if (resultList != null) {
+					rows.add(resultList);
+				}
+			}
+		}
+
+		long printing = 0;
+		long writer = 0;
+		// first round is warm up
+		for (int i = 0; i <= iterations; i++) {
+			long start = System.nanoTime();
+			writeAll(new PrintStreamResultWriter(System.out), rows);
+			long end = System.nanoTime();
+			if (i > 0) {
+				printing += end - start;
+			}
+
+			start = System.nanoTime();
+			writeAll(new TextResultWriter(), rows);
+			end = System.nanoTime();
+			if (i > 0) {
+				writer += end - start;
+			}
+		}
+
+		System.err.printf("%-18s %12.0f methods/sec%n", "System.out rows",
+				(double) rows.size() * iterations * 1e9 / printing);
+		System.err.printf("%-18s %12.0f methods/sec%n", "TextResultWriter",
+				(double) rows.size() * iterations * 1e9 / writer);
+		System.err.printf("speedup: %.2fx%n", (double) printing / writer);
+	}
+
+	private static void writeAll(ResultWriter writer, List<PatternList> rows)
+			throws IOException {
+		for (PatternList resultList : rows) {
+			writer.write(resultList);
+		}
+		writer.close();
+	}
+
+	private static void report(String name, int methods, int iterations,
+			long nanos) {
+		double perSecond = (double) methods * iterations * 1e9 / nanos;
+		System.out.printf("%-18s %12.0f methods/sec%n", name, perSecond);
+	}
+
+}
@@ -0,0 +1,247 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.commons.EmptyVisitor;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for each pattern spotter on its own, and for the
+ * whole of analyseMethod, over a fixed sample of real method
+ * bodies taken from the jars in the jars parameter.
+ * Every benchmark analyses the whole sample once per invocation,
+ * so scores are methods/sec, and with -prof gc the normalised
+ * allocation rate is bytes allocated per method.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpotterBenchmarks {
+
+	/** methods analysed per benchmark invocation **/
+	static final int SAMPLE = 1024;
+
+	private static final EmptyVisitor EMPTY = new EmptyVisitor();
+
+	/**
+	 * the methods with bytecode from the jars, repeated as
+	 * necessary to fill the sample
+	 */
+	@State(Scope.Benchmark)
+	public static class Corpus {
+
+		/** comma separated jar paths, relative to the project root **/
+		@Param("lib/asm-3.1.jar,lib/junit-4.12.jar")
+		public String jars;
+
+		ClassNode[] classes = new ClassNode[SAMPLE];
+		MethodNode[] methods = new MethodNode[SAMPLE];
+		HierarchyIndex hierarchy = new HierarchyIndex();
+
+		@Setup
+		public void load() throws IOException {
+			List<ClassNode> owners = new ArrayList<ClassNode>();
+			List<MethodNode> bodies = new ArrayList<MethodNode>();
+			for (String path : jars.split(",")) {
+				hierarchy.addJar(path);
+				loadJar(path, owners, bodies);
+			}
+			if (bodies.isEmpty()) {
+				throw new IOException("no method bodies in " + jars);
+			}
+			for (int i = 0; i < SAMPLE; i++) {
+				classes[i] = owners.get(i % owners.size());
+				methods[i] = bodies.get(i % bodies.size());
+			}
+		}
+
+		@TearDown
+		public void close() {
+			hierarchy.close();
+		}
+	}
+
+	static void loadJar(String path, List<ClassNode> owners,
+			List<MethodNode> bodies) throws IOException {
+		JarFile jar = new JarFile(path);
+		try {
+			Enumeration<JarEntry> enums = jar.entries();
+			while (enums.hasMoreElements()) {
+				JarEntry file = enums.nextElement();
+				if (!file.isDirectory() && file.getName().endsWith(".class")) {
+					ClassNode cn = new ClassNode();
+					new ClassReader(jar.getInputStream(file)).accept(cn,
+							ClassReader.SKIP_DEBUG);
+					for (Object m : cn.methods) {
+						MethodNode method = (MethodNode) m;
+						if (method.instructions.size() > 0) {
+							owners.add(cn);
+							bodies.add(method);
+						}
+					}
+				}
+			}
+		} finally {
+			jar.close();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLE)
+	public void recursive(Corpus corpus, Blackhole bh) {
+		for (int i = 0; i < SAMPLE; i++) {
+			MethodNode method = corpus.methods[i];
+			RecursivePatternSpotter spotter = new RecursivePatternSpotter(
+					EMPTY, corpus.classes[i].name, method.name, method.desc);
+			method.instructions.accept(spotter);
+			bh.consume(spotter.isRecursive());
+			bh.consume(spotter.isSameNameCaller());
+			bh.consume(spotter.isLeaf());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLE)
+	public void ooAccess(Corpus corpus, Blackhole bh) {
+		for (int i = 0; i < SAMPLE; i++) {
+			OOAccessPatternSpotter spotter = new OOAccessPatternSpotter(EMPTY,
+					corpus.methods[i].access);
+			corpus.methods[i].instructions.accept(spotter);
+			bh.consume(spotter.isObjectCreator());
+			bh.consume(spotter.isThisInstanceFieldReader());
+			bh.consume(spotter.isOtherInstanceFieldWriter());
+			bh.consume(spotter.isStaticFieldReader());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLE)
+	public void typeManipulator(Corpus corpus, Blackhole bh) {
+		for (int i = 0; i < SAMPLE; i++) {
+			TypeManipulatorPatternSpotter spotter = new TypeManipulatorPatternSpotter(
+					EMPTY);
+			corpus.methods[i].instructions.accept(spotter);
+			bh.consume(spotter.isTypeManipulator());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLE)
+	public void controlFlow(Corpus corpus, Blackhole bh) {
+		for (int i = 0; i < SAMPLE; i++) {
+			ControlFlowPatternSpotter spotter = new ControlFlowPatternSpotter(
+					EMPTY);
+			corpus.methods[i].instructions.accept(spotter);
+			bh.consume(spotter.isStraightLineCode());
+			bh.consume(spotter.isLoopingCode());
+			bh.consume(spotter.isSwitcher());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLE)
+	public void arrayAccess(Corpus corpus, Blackhole bh) {
+		for (int i = 0; i < SAMPLE; i++) {
+			ArrayAccessPatternSpotter spotter = new ArrayAccessPatternSpotter(
+					EMPTY);
+			corpus.methods[i].instructions.accept(spotter);
+			bh.consume(spotter.isLocalVarReader());
+			bh.consume(spotter.isArrayCreator());
+			bh.consume(spotter.isArrayReader());
+			bh.consume(spotter.isArrayWriter());
+		}
+	}
+
+	/** abstract method lookups are memoized after the first pass **/
+	@Benchmark
+	@OperationsPerInvocation(SAMPLE)
+	public void polymorphic(Corpus corpus, Blackhole bh) {
+		for (int i = 0; i < SAMPLE; i++) {
+			PolymorphicPatternSpotter spotter = new PolymorphicPatternSpotter(
+					EMPTY, corpus.hierarchy);
+			corpus.methods[i].instructions.accept(spotter);
+			bh.consume(spotter.isPolymorphic());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLE)
+	public void returns(Corpus corpus, Blackhole bh) {
+		for (int i = 0; i < SAMPLE; i++) {
+			ReturnPatternSpotter spotter = new ReturnPatternSpotter(EMPTY);
+			corpus.methods[i].instructions.accept(spotter);
+			bh.consume(spotter.isSingleReturner());
+			bh.consume(spotter.isMultipleReturner());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLE)
+	public void methodCalls(Corpus corpus, Blackhole bh) {
+		for (int i = 0; i < SAMPLE; i++) {
+			MethodPatternSpotter spotter = new MethodPatternSpotter(EMPTY);
+			corpus.methods[i].instructions.accept(spotter);
+			bh.consume(spotter.isClient());
+			bh.consume(spotter.isJdkClient());
+			bh.consume(spotter.isTailCaller());
+		}
+	}
+
+	/** the single-pass spotter on its own, without building rows **/
+	@Benchmark
+	@OperationsPerInvocation(SAMPLE)
+	public void fused(Corpus corpus, Blackhole bh) {
+		for (int i = 0; i < SAMPLE; i++) {
+			MethodNode method = corpus.methods[i];
+			FusedPatternSpotter spotter = new FusedPatternSpotter(EMPTY,
+					method.access, corpus.classes[i].name, method.name,
+					method.desc, FusedPatternSpotter.PATTERNS,
+					HierarchyIndex.getShared());
+			method.instructions.accept(spotter);
+			bh.consume(spotter.getNumInstrs());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLE)
+	public void analyseMethod(Corpus corpus, Blackhole bh) {
+		for (int i = 0; i < SAMPLE; i++) {
+			bh.consume(TestPatternSpotter.analyseMethod(corpus.classes[i],
+					corpus.methods[i]));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLE)
+	public void analyseMethodWithSpotters(Corpus corpus, Blackhole bh) {
+		for (int i = 0; i < SAMPLE; i++) {
+			bh.consume(TestPatternSpotter.analyseMethodWithSpotters(
+					corpus.classes[i], corpus.methods[i]));
+		}
+	}
+
+}
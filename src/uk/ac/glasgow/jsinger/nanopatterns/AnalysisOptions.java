@@ -0,0 +1,269 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Command line options for a TestPatternSpotter run, and the
+ * shared resources they call for. One instance is shared by
+ * every scanner in the run, so it must not hold per-scan state.
+ */
+public class AnalysisOptions {
+
+	public static final String USAGE =
+			"Options:\n"
+			+ "  -threads N   analyse classes on N worker threads\n"
+			+ "  -stream      analyse straight off the class reader, without building class trees\n"
+			+ "  -dedup       analyse byte-identical copies of a class once and reuse their rows\n"
+			+ "  -mmap        read jars through memory-mapped files instead of JarFile\n"
+			+ "  -binary PREFIX   write binary records to PREFIX.rows and PREFIX.strings instead of text\n"
+			+ "  -index       with -binary, also build the pattern index PREFIX.index\n"
+			+ "  -columns PREFIX  write one file per column, PREFIX.class, .method, .desc, .instrs, .mask\n"
+			+ "                   and .dict, for ColumnarResults, instead of text\n"
+			+ "  -cache DIR   reuse results for unchanged classes from the cache in DIR\n"
+			+ "  -cache-max-age DAYS   evict cached results unused for DAYS days\n"
+			+ "  -cache-max-mb MB      keep the cache below MB megabytes\n"
+			+ "  -incremental FILE   only re-analyse directory class files changed since the manifest FILE\n"
+			+ "  -watch FILE  keep FILE reporting on the directory targets, re-analysing changed class files\n"
+			+ "  -patterns LIST   compute and report only these patterns, e.g. looper,polymorphic\n"
+			+ "  -server PORT keep running, serving analysis requests on loopback PORT (see AnalysisServer)\n"
+			+ "  -stats       report per-phase times and throughput at the end of the run\n"
+			+ "  -jfr         emit a flight recorder event for each class analysed\n";
+
+	/** number of worker threads; 1 analyses on the calling thread **/
+	public int threads = 1;
+
+	/** analyse with visitor chains instead of ClassNode trees **/
+	public boolean stream = false;
+
+	/** reuse the rows of identical classes, or null when off **/
+	public ClassDeduplicator dedup;
+
+	/** manifest for incremental directory scans, or null when off **/
+	public String manifestPath;
+	public ScanManifest manifest;
+
+	/** report file for watch mode, or null to analyse once **/
+	public String watchReport;
+
+	/** read jars with MappedJarReader **/
+	public boolean mmap = false;
+
+	/** worker pool when threads > 1, otherwise null **/
+	public ForkJoinPool pool;
+
+	/** file prefix for binary output, or null for the text report **/
+	public String binaryPrefix;
+
+	/** file prefix for columnar output, or null **/
+	public String columnsPrefix;
+
+	/** build a PatternIndex over the binary output **/
+	public boolean index = false;
+
+	/** where result rows go **/
+	public ResultWriter writer;
+
+	/** where failures are reported, after the rows before them **/
+	public PrintStream messages = System.out;
+
+	/** port for server mode, or -1 to analyse the targets and exit **/
+	public int serverPort = -1;
+
+	/** cache location and limits **/
+	public String cacheDir;
+	public long cacheMaxAgeDays = 30;
+	public long cacheMaxMegabytes = 1024;
+
+	/** result cache, or null when caching is off **/
+	public ResultCache cache;
+
+	/** the pattern columns to compute and report, as a mask **/
+	public long patterns = PatternList.allColumns();
+
+	/** timers and counters for the run, or null when off **/
+	public AnalysisStats stats;
+
+	/** commit a ClassAnalysisEvent per class **/
+	public boolean jfr = false;
+
+	/** abstract method lookups, shared by every scanner in the run **/
+	public final HierarchyIndex hierarchy;
+
+	public AnalysisOptions() {
+		this(new HierarchyIndex());
+	}
+
+	private AnalysisOptions(HierarchyIndex hierarchy) {
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Parses the options out of the command line. Every other
+	 * argument is added to targets, in order. Throws an
+	 * IllegalArgumentException for an unknown pattern name.
+	 */
+	public static AnalysisOptions parse(String[] args, List<String> targets) {
+		AnalysisOptions options = new AnalysisOptions();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-threads") && i + 1 < args.length) {
+				options.threads = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-stream")) {
+				options.stream = true;
+			} else if (arg.equals("-dedup")) {
+				options.dedup = new ClassDeduplicator();
+			} else if (arg.equals("-incremental") && i + 1 < args.length) {
+				options.manifestPath = args[++i];
+			} else if (arg.equals("-watch") && i + 1 < args.length) {
+				options.watchReport = args[++i];
+			} else if (arg.equals("-mmap")) {
+				options.mmap = true;
+			} else if (arg.equals("-binary") && i + 1 < args.length) {
+				options.binaryPrefix = args[++i];
+			} else if (arg.equals("-columns") && i + 1 < args.length) {
+				options.columnsPrefix = args[++i];
+			} else if (arg.equals("-index")) {
+				options.index = true;
+			} else if (arg.equals("-cache") && i + 1 < args.length) {
+				options.cacheDir = args[++i];
+			} else if (arg.equals("-cache-max-age") && i + 1 < args.length) {
+				options.cacheMaxAgeDays = Long.parseLong(args[++i]);
+			} else if (arg.equals("-cache-max-mb") && i + 1 < args.length) {
+				options.cacheMaxMegabytes = Long.parseLong(args[++i]);
+			} else if (arg.equals("-server") && i + 1 < args.length) {
+				options.serverPort = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-patterns") && i + 1 < args.length) {
+				options.patterns = PatternList.parseColumns(args[++i]);
+			} else if (arg.equals("-stats")) {
+				options.stats = new AnalysisStats();
+			} else if (arg.equals("-jfr")) {
+				options.jfr = true;
+			} else {
+				targets.add(arg);
+			}
+		}
+		if (options.threads > 1) {
+			options.pool = new ForkJoinPool(options.threads);
+		}
+		if (options.manifestPath != null) {
+			try {
+				options.manifest = new ScanManifest(new File(options.manifestPath));
+			} catch (IOException e) {
+				System.err.println("Failed to read scan manifest, rescanning everything: "
+						+ options.manifestPath);
+				options.manifest = null;
+			}
+		}
+		if (options.cacheDir != null) {
+			try {
+				options.cache = new ResultCache(new File(options.cacheDir),
+						options.cacheMaxAgeDays * 24L * 60 * 60 * 1000,
+						options.cacheMaxMegabytes * 1024L * 1024);
+			} catch (IOException e) {
+				System.err.println("Failed to open result cache, continuing without it: "
+						+ options.cacheDir);
+			}
+		}
+		return options;
+	}
+
+	/** opens the result writer chosen by the options **/
+	public void openWriter() throws IOException {
+		if (binaryPrefix != null) {
+			writer = new BinaryResultWriter(binaryPrefix, patterns);
+		} else if (columnsPrefix != null) {
+			writer = new ColumnarResultWriter(columnsPrefix, patterns);
+		} else {
+			writer = new TextResultWriter(System.out, patterns);
+		}
+	}
+
+	/**
+	 * Options for one server session: the same settings and shared
+	 * resources (pool and cache), but its own output, looking up
+	 * abstract methods in the given index. The caller closes the
+	 * session's writer.
+	 */
+	public AnalysisOptions forSession(ResultWriter writer,
+			PrintStream messages, HierarchyIndex hierarchy) {
+		AnalysisOptions session = new AnalysisOptions(hierarchy);
+		session.threads = threads;
+		session.stream = stream;
+		session.mmap = mmap;
+		session.dedup = dedup;
+		session.manifestPath = manifestPath;
+		session.manifest = manifest;
+		session.index = index;
+		session.pool = pool;
+		session.cacheDir = cacheDir;
+		session.cacheMaxAgeDays = cacheMaxAgeDays;
+		session.cacheMaxMegabytes = cacheMaxMegabytes;
+		session.cache = cache;
+		session.patterns = patterns;
+		session.stats = stats;
+		session.jfr = jfr;
+		session.writer = writer;
+		session.messages = messages;
+		return session;
+	}
+
+	/**
+	 * the patterns analysis must compute: all of them when rows are
+	 * kept for later runs, which may report other patterns
+	 */
+	public long getAnalysedPatterns() {
+		if (cache != null || manifest != null) {
+			return PatternList.allColumns();
+		}
+		return patterns;
+	}
+
+	/** releases the shared resources at the end of the run **/
+	public void close() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				System.err.println("Failed to write results: " + e.getMessage());
+			}
+			if (index && binaryPrefix != null) {
+				try {
+					PatternIndex.build(binaryPrefix);
+				} catch (IOException e) {
+					System.err.println("Failed to build pattern index: " + e.getMessage());
+				}
+			}
+		}
+		if (pool != null) {
+			pool.shutdown();
+		}
+		hierarchy.close();
+		if (dedup != null) {
+			dedup.printSummary();
+		}
+		if (manifest != null) {
+			manifest.printStatistics();
+			try {
+				manifest.save();
+			} catch (IOException e) {
+				System.err.println("Failed to save scan manifest: " + manifestPath);
+			}
+		}
+		if (cache != null) {
+			cache.printStatistics();
+			try {
+				cache.close();
+			} catch (IOException e) {
+				System.err.println("Failed to save result cache: " + cacheDir);
+			}
+		}
+		if (stats != null) {
+			stats.print(System.err, hierarchy);
+		}
+	}
+
+}
@@ -0,0 +1,177 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * Keeps a warmed-up analyser resident and serves analysis requests
+ * over a TCP socket on the loopback interface, so that repeated
+ * runs skip JVM start-up and JIT warm-up and share the hierarchy
+ * index, result cache and worker pool.
+ * Requests are lines of text, one per request:
+ *   TARGET        anything TestPatternSpotter accepts as an
+ *                 argument: a jar or class file, class name or
+ *                 name:desc method
+ *   BYTES n       followed by exactly n bytes of class file, at
+ *                 most MAX_CLASS_BYTES; a bad length ends the
+ *                 session, as the bytes cannot be skipped
+ *   RESET         start a fresh hierarchy index, after class files
+ *                 under directory targets change (jars are read
+ *                 again anyway when their size or time changes)
+ *   QUIT          end the session
+ * Each session starts with the report header line. Each request
+ * is answered with its report rows (and any failure messages),
+ * then a line holding just END, even when the request fails.
+ * Sessions run on their own threads, so may overlap.
+ */
+public class AnalysisServer {
+
+	public static final String END = "END";
+
+	/** the largest class file a BYTES request may send **/
+	public static final int MAX_CLASS_BYTES = 64 << 20;
+
+	private final AnalysisOptions options;
+
+	/**
+	 * the index new requests use; RESET replaces it, leaving the old
+	 * one to the requests still using it
+	 */
+	private volatile HierarchyIndex hierarchy;
+
+	public AnalysisServer(AnalysisOptions options) {
+		this.options = options;
+		this.hierarchy = options.hierarchy;
+	}
+
+	/** serves sessions until the process is stopped **/
+	public void run() throws IOException {
+		ServerSocket server = new ServerSocket(options.serverPort, 50,
+				InetAddress.getLoopbackAddress());
+		// save the cache when the server is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				options.close();
+				hierarchy.close();
+			}
+		});
+		System.err.println("nanopatterns server listening on "
+				+ server.getInetAddress().getHostAddress() + ":"
+				+ server.getLocalPort());
+		while (true) {
+			final Socket socket = server.accept();
+			Thread session = new Thread("nanopatterns session") {
+				public void run() {
+					serve(socket);
+				}
+			};
+			session.setDaemon(true);
+			session.start();
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(
+						socket.getInputStream()));
+				OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+				PrintStream messages = new PrintStream(out, true);
+				ResultWriter writer = new TextResultWriter(out, options.patterns);
+				String request;
+				boolean more = true;
+				while (more && (request = readLine(in)) != null
+						&& !request.equals("QUIT")) {
+					// each request sees the index as of its start
+					AnalysisOptions session = options.forSession(writer,
+							messages, hierarchy);
+					try {
+						more = handle(request, in, session);
+					} catch (RuntimeException e) {
+						messages.println("Failed on " + request + ": " + e);
+					}
+					writer.flush();
+					messages.println(END);
+				}
+				writer.close();
+			} finally {
+				socket.close();
+			}
+		} catch (IOException e) {
+			// client went away - nothing to report it to
+		}
+	}
+
+	/** answers one request, returning false if the session must end **/
+	private boolean handle(String request, DataInputStream in,
+			AnalysisOptions session) throws IOException {
+		if (request.length() == 0) {
+			return true;
+		}
+		if (request.equals("RESET")) {
+			hierarchy = new HierarchyIndex();
+			return true;
+		}
+		if (request.startsWith("BYTES ")) {
+			int length;
+			try {
+				length = Integer.parseInt(request.substring(6).trim());
+			} catch (NumberFormatException e) {
+				length = -1;
+			}
+			if (length < 0 || length > MAX_CLASS_BYTES) {
+				session.messages.println("Bad class file length: "
+						+ request.substring(6));
+				return false;
+			}
+			byte[] classBytes = new byte[length];
+			in.readFully(classBytes);
+			List<PatternList> results;
+			try {
+				results = new TestPatternSpotter(
+						TestPatternSpotter.ANALYSE_CLASS_FILE, null, session)
+						.analyseClassBytes(classBytes);
+			} catch (RuntimeException e) {
+				session.messages.println("Failed to read class bytes");
+				return true;
+			}
+			for (PatternList resultList : results) {
+				session.writer.write(resultList);
+			}
+			return true;
+		}
+		// jars register themselves as they are scanned
+		File target = new File(request);
+		if (target.isDirectory()) {
+			session.hierarchy.addDirectory(target);
+		}
+		TestPatternSpotter.analyseTarget(request, session);
+		return true;
+	}
+
+	/** reads a UTF-8 line, or returns null at the end of the stream **/
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			line.write(b);
+		}
+		if (b == -1 && line.size() == 0) {
+			return null;
+		}
+		String s = line.toString("UTF-8");
+		return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+	}
+
+}
@@ -0,0 +1,88 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-phase timers and throughput counters for a run, reported
+ * at the end of it with -stats.
+ * Phase times are summed over every worker thread, so with
+ * -threads they add up to more than the wall-clock time. With
+ * -stream, classes are parsed and spotted in a single pass, which
+ * is all counted as spotting. Safe for concurrent use.
+ */
+public class AnalysisStats {
+
+	/** reading class files, including jar inflation **/
+	public static final int READ = 0;
+	/** building class readers and class trees **/
+	public static final int PARSE = 1;
+	/** running the spotters **/
+	public static final int SPOT = 2;
+	/** handing rows to the result writer **/
+	public static final int WRITE = 3;
+
+	private static final String[] PHASE_NAMES = { "read", "parse", "spot", "write" };
+
+	private final LongAdder[] nanos = new LongAdder[PHASE_NAMES.length];
+	private final LongAdder classes = new LongAdder();
+	private final LongAdder methods = new LongAdder();
+	private final LongAdder instructions = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+
+	private final long started = System.nanoTime();
+
+	public AnalysisStats() {
+		for (int phase = 0; phase < nanos.length; phase++) {
+			nanos[phase] = new LongAdder();
+		}
+	}
+
+	/** adds the time since start (from System.nanoTime) to phase **/
+	public void addTime(int phase, long start) {
+		nanos[phase].add(System.nanoTime() - start);
+	}
+
+	/** a class file of the given size was read, starting at start **/
+	public void addRead(long start, int bytes) {
+		addTime(READ, start);
+		bytesRead.add(bytes);
+	}
+
+	/** a class was analysed into the given rows **/
+	public void addClass(List<PatternList> rows) {
+		classes.increment();
+		methods.add(rows.size());
+		long count = 0;
+		for (PatternList resultList : rows) {
+			count += resultList.numInstrs;
+		}
+		instructions.add(count);
+	}
+
+	public void print(PrintStream out, HierarchyIndex hierarchy) {
+		long wall = System.nanoTime() - started;
+		double seconds = wall / 1e9;
+		out.println("statistics: " + millis(wall) + " ms wall clock");
+		for (int phase = 0; phase < nanos.length; phase++) {
+			out.println("  " + PHASE_NAMES[phase] + ": " + millis(nanos[phase].sum()) + " ms");
+		}
+		out.println("  hierarchy: " + millis(hierarchy.getLoadNanos()) + " ms loading "
+				+ hierarchy.getLoads() + " classes, " + hierarchy.getLookups()
+				+ " lookups (" + hierarchy.getHits() + " hits, "
+				+ (hierarchy.getLookups() - hierarchy.getHits()) + " misses)");
+		out.println("  " + classes.sum() + " classes, " + methods.sum() + " methods, "
+				+ instructions.sum() + " instructions, " + bytesRead.sum() + " bytes read");
+		if (seconds > 0) {
+			out.println("  " + Math.round(classes.sum() / seconds) + " classes/s, "
+					+ Math.round(methods.sum() / seconds) + " methods/s, "
+					+ Math.round(bytesRead.sum() / seconds / 1024) + " KB/s");
+		}
+	}
+
+	private static long millis(long nanos) {
+		return nanos / 1000000;
+	}
+
+}
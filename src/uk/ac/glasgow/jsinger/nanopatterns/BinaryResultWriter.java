@@ -0,0 +1,99 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes results as fixed-width binary records, so downstream
+ * tools can memory-map them and index straight to any row.
+ * All values are big-endian.
+ *
+ * prefix.rows:
+ *   header  int magic "NPRB", int version, int record size (24),
+ *           int number of patterns, long mask of the patterns
+ *           computed, then each pattern's column name (as by
+ *           DataOutput.writeUTF), in bit order
+ *   records int class name id, int method name id,
+ *           int method descriptor id, int numInstrs,
+ *           long pattern mask (bit n is PatternList pattern n;
+ *           patterns not computed are always 0)
+ *
+ * prefix.strings (the ids index into this table, from 0):
+ *   header  int magic "NPST", int version
+ *   entries int byte length, then the string in UTF-8
+ */
+public class BinaryResultWriter implements ResultWriter {
+
+	public static final int ROWS_MAGIC = 0x4E505242;
+	public static final int STRINGS_MAGIC = 0x4E505354;
+	public static final int VERSION = 3;
+	public static final int RECORD_BYTES = 24;
+
+	private final DataOutputStream rows;
+	private final DataOutputStream strings;
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+	/** the patterns written, as a mask **/
+	private final long columns;
+
+	public BinaryResultWriter(String prefix) throws IOException {
+		this(prefix, PatternList.allColumns());
+	}
+
+	public BinaryResultWriter(String prefix, long columns) throws IOException {
+		this.columns = columns;
+		rows = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(prefix + ".rows"), 1 << 16));
+		strings = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(prefix + ".strings"), 1 << 16));
+		rows.writeInt(ROWS_MAGIC);
+		rows.writeInt(VERSION);
+		rows.writeInt(RECORD_BYTES);
+		rows.writeInt(PatternList.getColumnCount());
+		rows.writeLong(columns);
+		for (int pattern = 0; pattern < PatternList.getColumnCount(); pattern++) {
+			rows.writeUTF(PatternList.getColumnName(pattern));
+		}
+		strings.writeInt(STRINGS_MAGIC);
+		strings.writeInt(VERSION);
+	}
+
+	public void write(PatternList resultList) throws IOException {
+		rows.writeInt(idOf(resultList.className));
+		rows.writeInt(idOf(resultList.methodName));
+		rows.writeInt(idOf(resultList.methodDesc));
+		rows.writeInt(resultList.numInstrs);
+		rows.writeLong(resultList.getMask() & columns);
+	}
+
+	/** the string's id, adding it to the table on first use **/
+	private int idOf(String s) throws IOException {
+		Integer id = ids.get(s);
+		if (id == null) {
+			id = Integer.valueOf(ids.size());
+			ids.put(s, id);
+			byte[] utf8 = s.getBytes("UTF-8");
+			strings.writeInt(utf8.length);
+			strings.write(utf8);
+		}
+		return id.intValue();
+	}
+
+	public void flush() throws IOException {
+		rows.flush();
+		strings.flush();
+	}
+
+	public void close() throws IOException {
+		try {
+			rows.close();
+		} finally {
+			strings.close();
+		}
+	}
+
+}
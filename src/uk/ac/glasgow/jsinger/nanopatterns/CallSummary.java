@@ -0,0 +1,54 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.util.List;
+
+/**
+ * The calls that decide a method's polymorphic pattern: whether it
+ * calls through an interface (polymorphic whatever the callees
+ * look like) and otherwise its distinct INVOKEVIRTUAL callees.
+ * Stored with cached and manifest rows, so that on a hit the
+ * pattern is resolved afresh against the current hierarchy without
+ * parsing the class again.
+ */
+public class CallSummary {
+
+	private static final String[] NO_CALLEES = new String[0];
+
+	private final boolean interfaceCall;
+
+	/** owner, name and descriptor of each virtual callee, in triples **/
+	private final String[] virtualCallees;
+
+	public CallSummary(boolean interfaceCall, String[] virtualCallees) {
+		this.interfaceCall = interfaceCall;
+		this.virtualCallees = interfaceCall ? NO_CALLEES : virtualCallees;
+	}
+
+	/** callees as recorded by FusedPatternSpotter, in triples **/
+	CallSummary(boolean interfaceCall, List<String> virtualCallees) {
+		this(interfaceCall, virtualCallees.toArray(new String[virtualCallees.size()]));
+	}
+
+	public boolean isInterfaceCall() {
+		return interfaceCall;
+	}
+
+	public String[] getVirtualCallees() {
+		return virtualCallees.clone();
+	}
+
+	/** the polymorphic pattern, as the hierarchy stands now **/
+	public boolean isPolymorphic(HierarchyIndex hierarchy) {
+		if (interfaceCall) {
+			return true;
+		}
+		for (int i = 0; i < virtualCallees.length; i += 3) {
+			if (hierarchy.isAbstractMethod(virtualCallees[i],
+					virtualCallees[i + 1], virtualCallees[i + 2])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
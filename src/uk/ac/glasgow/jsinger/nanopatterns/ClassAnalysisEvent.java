@@ -0,0 +1,36 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for the parsing and spotting of one class,
+ * committed with -jfr. Only recorded while a recording is running,
+ * e.g. under -XX:StartFlightRecording.
+ */
+@Name("uk.ac.glasgow.jsinger.nanopatterns.ClassAnalysis")
+@Label("Class Analysis")
+@Category("Nano-patterns")
+@Description("Parsing and spotting one class")
+@StackTrace(false)
+class ClassAnalysisEvent extends Event {
+
+	@Label("Class")
+	String className;
+
+	@Label("Class File Size")
+	@DataAmount
+	int bytes;
+
+	@Label("Methods")
+	int methods;
+
+	@Label("Instructions")
+	long instructions;
+
+}
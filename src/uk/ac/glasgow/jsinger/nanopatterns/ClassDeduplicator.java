@@ -0,0 +1,51 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the rows of every class analysed in this run, keyed by
+ * a hash of the class file bytes, so identical copies of a class
+ * (shaded or bundled into several jars) are analysed only once.
+ * Later copies report the rows of the first. Safe for concurrent
+ * use; two copies analysed at the same moment may both be
+ * analysed.
+ */
+public class ClassDeduplicator {
+
+	private final ConcurrentHashMap<ResultCache.Key, List<PatternList>> seen = new ConcurrentHashMap<ResultCache.Key, List<PatternList>>();
+
+	private final AtomicLong classes = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong duplicateBytes = new AtomicLong();
+	private final AtomicLong duplicateRows = new AtomicLong();
+
+	/**
+	 * the rows of an earlier copy of the class with this key, or
+	 * null if this is the first copy
+	 */
+	public List<PatternList> get(byte[] key, int classBytes) {
+		classes.incrementAndGet();
+		List<PatternList> results = seen.get(new ResultCache.Key(key));
+		if (results != null) {
+			duplicates.incrementAndGet();
+			duplicateBytes.addAndGet(classBytes);
+			duplicateRows.addAndGet(results.size());
+		}
+		return results;
+	}
+
+	/** records the rows of the first copy of a class **/
+	public void put(byte[] key, List<PatternList> results) {
+		seen.putIfAbsent(new ResultCache.Key(key), results);
+	}
+
+	/** prints how much analysis the duplicates saved **/
+	public void printSummary() {
+		System.err.println("deduplication: " + classes.get() + " classes, "
+				+ duplicates.get() + " duplicates (" + duplicateBytes.get()
+				+ " bytes, " + duplicateRows.get() + " methods) not re-analysed");
+	}
+
+}
@@ -0,0 +1,160 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes results column by column, one file per column, so that
+ * aggregations read just the columns they need, straight out of
+ * memory-mapped files (see ColumnarResults). Row n of the run is
+ * value n of every column. All values are big-endian.
+ *
+ * Every column file starts with the same 24 byte header:
+ *   int magic "NPCC", int version, int value width in bytes,
+ *   int number of patterns, long mask of the patterns computed
+ * then holds one fixed-width value per row, so the number of rows
+ * follows from the file size:
+ *   prefix.class   int class name id
+ *   prefix.method  int method name id
+ *   prefix.desc    int method descriptor id
+ *   prefix.instrs  int numInstrs
+ *   prefix.mask    long pattern mask (bit n is PatternList pattern
+ *                  n; patterns not computed are always 0)
+ *
+ * prefix.dict, the strings the ids stand for, written on close:
+ *   header  int magic "NPCD", int version, int number of strings
+ *   offsets one int per string, plus one for the end, from the
+ *           start of the string data
+ *   data    the strings in UTF-8, back to back
+ * Class names, method names and descriptors share the dictionary.
+ */
+public class ColumnarResultWriter implements ResultWriter {
+
+	public static final int COLUMN_MAGIC = 0x4E504343;
+	public static final int DICTIONARY_MAGIC = 0x4E504344;
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 24;
+
+	/** file name suffixes of the columns **/
+	public static final String CLASS = ".class";
+	public static final String METHOD = ".method";
+	public static final String DESC = ".desc";
+	public static final String INSTRS = ".instrs";
+	public static final String MASK = ".mask";
+	public static final String DICTIONARY = ".dict";
+
+	private final String prefix;
+
+	/** the patterns written, as a mask **/
+	private final long columns;
+
+	private final DataOutputStream classes;
+	private final DataOutputStream methods;
+	private final DataOutputStream descs;
+	private final DataOutputStream instrs;
+	private final DataOutputStream masks;
+
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final List<String> strings = new ArrayList<String>();
+
+	public ColumnarResultWriter(String prefix) throws IOException {
+		this(prefix, PatternList.allColumns());
+	}
+
+	public ColumnarResultWriter(String prefix, long columns) throws IOException {
+		this.prefix = prefix;
+		this.columns = columns;
+		classes = openColumn(CLASS, 4);
+		methods = openColumn(METHOD, 4);
+		descs = openColumn(DESC, 4);
+		instrs = openColumn(INSTRS, 4);
+		masks = openColumn(MASK, 8);
+	}
+
+	private DataOutputStream openColumn(String suffix, int width)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(prefix + suffix), 1 << 16));
+		out.writeInt(COLUMN_MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(width);
+		out.writeInt(PatternList.getColumnCount());
+		out.writeLong(columns);
+		return out;
+	}
+
+	public void write(PatternList resultList) throws IOException {
+		classes.writeInt(idOf(resultList.className));
+		methods.writeInt(idOf(resultList.methodName));
+		descs.writeInt(idOf(resultList.methodDesc));
+		instrs.writeInt(resultList.numInstrs);
+		masks.writeLong(resultList.getMask() & columns);
+	}
+
+	/** the string's id, adding it to the dictionary on first use **/
+	private int idOf(String s) {
+		Integer id = ids.get(s);
+		if (id == null) {
+			id = Integer.valueOf(strings.size());
+			ids.put(s, id);
+			strings.add(s);
+		}
+		return id.intValue();
+	}
+
+	public void flush() throws IOException {
+		classes.flush();
+		methods.flush();
+		descs.flush();
+		instrs.flush();
+		masks.flush();
+	}
+
+	public void close() throws IOException {
+		IOException failure = null;
+		for (DataOutputStream column : new DataOutputStream[] { classes,
+				methods, descs, instrs, masks }) {
+			try {
+				column.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		writeDictionary();
+	}
+
+	private void writeDictionary() throws IOException {
+		byte[][] utf8 = new byte[strings.size()][];
+		for (int i = 0; i < utf8.length; i++) {
+			utf8[i] = strings.get(i).getBytes("UTF-8");
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(prefix + DICTIONARY), 1 << 16));
+		try {
+			out.writeInt(DICTIONARY_MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(utf8.length);
+			int offset = 0;
+			for (byte[] s : utf8) {
+				out.writeInt(offset);
+				offset += s.length;
+			}
+			out.writeInt(offset);
+			for (byte[] s : utf8) {
+				out.write(s);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,421 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Read-only view of the result columns written by
+ * ColumnarResultWriter. Every file is memory-mapped, so opening
+ * costs no reading, rows are decoded only when asked for, and
+ * aggregations touch just the columns they need: pattern
+ * frequencies read only the mask column, and per-package
+ * breakdowns add the class column plus one dictionary lookup per
+ * distinct class. Each column must be below 2GB, which allows for
+ * over 250 million methods.
+ * Safe for concurrent reads.
+ *
+ * usage:
+ *   ColumnarResults PREFIX [-packages]
+ *     prints how many methods exhibit each pattern computed, or
+ *     with -packages the same counts for each package
+ */
+public class ColumnarResults {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int numMethods;
+	private final int numPatterns;
+
+	/** the patterns computed, as a mask **/
+	private final long computed;
+
+	private final IntBuffer classIds;
+	private final IntBuffer methodIds;
+	private final IntBuffer descIds;
+	private final IntBuffer instrs;
+	private final LongBuffer masks;
+
+	/** dictionary: string count, offsets into data, and data **/
+	private final int numStrings;
+	private final IntBuffer offsets;
+	private final ByteBuffer data;
+
+	private ColumnarResults(String prefix) throws IOException {
+		MappedByteBuffer mask = map(prefix + ColumnarResultWriter.MASK);
+		checkColumn(prefix + ColumnarResultWriter.MASK, mask, 8);
+		numMethods = (mask.capacity() - ColumnarResultWriter.HEADER_BYTES) / 8;
+		numPatterns = mask.getInt(12);
+		computed = mask.getLong(16);
+		masks = values(mask).asLongBuffer();
+		classIds = openIntColumn(prefix + ColumnarResultWriter.CLASS);
+		methodIds = openIntColumn(prefix + ColumnarResultWriter.METHOD);
+		descIds = openIntColumn(prefix + ColumnarResultWriter.DESC);
+		instrs = openIntColumn(prefix + ColumnarResultWriter.INSTRS);
+
+		String path = prefix + ColumnarResultWriter.DICTIONARY;
+		MappedByteBuffer dictionary = map(path);
+		if (dictionary.capacity() < 12
+				|| dictionary.getInt(0) != ColumnarResultWriter.DICTIONARY_MAGIC
+				|| dictionary.getInt(4) != ColumnarResultWriter.VERSION) {
+			throw new IOException("not a result dictionary: " + path);
+		}
+		numStrings = dictionary.getInt(8);
+		dictionary.position(12);
+		offsets = dictionary.slice().asIntBuffer();
+		dictionary.position(12 + 4 * (numStrings + 1));
+		data = dictionary.slice();
+	}
+
+	/** maps the columns and dictionary written under the prefix **/
+	public static ColumnarResults open(String prefix) throws IOException {
+		return new ColumnarResults(prefix);
+	}
+
+	private IntBuffer openIntColumn(String path) throws IOException {
+		MappedByteBuffer column = map(path);
+		checkColumn(path, column, 4);
+		if ((column.capacity() - ColumnarResultWriter.HEADER_BYTES) / 4 != numMethods) {
+			throw new IOException("column has the wrong number of rows: " + path);
+		}
+		return values(column).asIntBuffer();
+	}
+
+	private static void checkColumn(String path, MappedByteBuffer column,
+			int width) throws IOException {
+		if (column.capacity() < ColumnarResultWriter.HEADER_BYTES
+				|| column.getInt(0) != ColumnarResultWriter.COLUMN_MAGIC
+				|| column.getInt(4) != ColumnarResultWriter.VERSION
+				|| column.getInt(8) != width) {
+			throw new IOException("not a result column: " + path);
+		}
+	}
+
+	/** the part of a column after its header **/
+	private static ByteBuffer values(MappedByteBuffer column) {
+		column.position(ColumnarResultWriter.HEADER_BYTES);
+		return column.slice();
+	}
+
+	private static MappedByteBuffer map(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			MappedByteBuffer map = file.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, file.length());
+			map.order(ByteOrder.BIG_ENDIAN);
+			return map;
+		} finally {
+			file.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2
+				|| (args.length == 2 && !args[1].equals("-packages"))) {
+			System.err.println("usage: java ColumnarResults PREFIX [-packages]");
+			System.exit(-1);
+		}
+		ColumnarResults results = open(args[0]);
+		StringBuilder out = new StringBuilder();
+		long start = System.nanoTime();
+		if (args.length == 2) {
+			Map<String, long[]> packages = results.frequenciesByPackage();
+			long nanos = System.nanoTime() - start;
+			out.append("package methods");
+			for (int pattern = 0; pattern < results.numPatterns; pattern++) {
+				if (results.isComputed(pattern)) {
+					out.append(' ').append(results.getPatternName(pattern));
+				}
+			}
+			out.append('\n');
+			for (Map.Entry<String, long[]> entry : packages.entrySet()) {
+				long[] counts = entry.getValue();
+				out.append(entry.getKey()).append(' ').append(counts[results.numPatterns]);
+				for (int pattern = 0; pattern < results.numPatterns; pattern++) {
+					if (results.isComputed(pattern)) {
+						out.append(' ').append(counts[pattern]);
+					}
+				}
+				out.append('\n');
+			}
+			System.out.print(out);
+			System.err.printf("%d methods in %d packages aggregated (%.2f ms)%n",
+					results.numMethods, packages.size(), nanos / 1e6);
+		} else {
+			long[] counts = results.patternFrequencies();
+			long nanos = System.nanoTime() - start;
+			for (int pattern = 0; pattern < results.numPatterns; pattern++) {
+				if (results.isComputed(pattern)) {
+					out.append(results.getPatternName(pattern)).append(' ')
+							.append(counts[pattern]).append(' ')
+							.append(String.format("%.1f%%", results.numMethods == 0 ? 0.0
+									: 100.0 * counts[pattern] / results.numMethods))
+							.append('\n');
+				}
+			}
+			System.out.print(out);
+			System.err.printf("%d methods aggregated (%.2f ms)%n",
+					results.numMethods, nanos / 1e6);
+		}
+	}
+
+	/** ROWS **/
+
+	public int getNumMethods() {
+		return numMethods;
+	}
+
+	/** number of pattern bits in each mask **/
+	public int getPatternCount() {
+		return numPatterns;
+	}
+
+	/** was the pattern computed? others always read as 0 **/
+	public boolean isComputed(int pattern) {
+		return (computed & (1L << pattern)) != 0;
+	}
+
+	/**
+	 * report column name of a pattern, as named by the detectors
+	 * installed now
+	 */
+	public String getPatternName(int pattern) {
+		if (pattern < PatternList.getColumnCount()) {
+			return PatternList.getColumnName(pattern);
+		}
+		return "pattern" + pattern;
+	}
+
+	public String getClassName(int row) {
+		return getString(classIds.get(row));
+	}
+
+	public String getMethodName(int row) {
+		return getString(methodIds.get(row));
+	}
+
+	public String getMethodDesc(int row) {
+		return getString(descIds.get(row));
+	}
+
+	/** dictionary id of the row's class name **/
+	public int getClassId(int row) {
+		return classIds.get(row);
+	}
+
+	public int getNumInstrs(int row) {
+		return instrs.get(row);
+	}
+
+	public long getMask(int row) {
+		return masks.get(row);
+	}
+
+	public boolean get(int row, int pattern) {
+		return (masks.get(row) & (1L << pattern)) != 0;
+	}
+
+	/** the row's values as a PatternList **/
+	public PatternList getRow(int row) {
+		PatternList resultList = new PatternList();
+		resultList.className = getClassName(row);
+		resultList.methodName = getMethodName(row);
+		resultList.methodDesc = getMethodDesc(row);
+		resultList.numInstrs = getNumInstrs(row);
+		resultList.setMask(getMask(row));
+		return resultList;
+	}
+
+	/** the dictionary string with the given id **/
+	public String getString(int id) {
+		int start = offsets.get(id);
+		byte[] utf8 = new byte[offsets.get(id + 1) - start];
+		ByteBuffer view = data.duplicate();
+		view.position(start);
+		view.get(utf8);
+		return new String(utf8, UTF8);
+	}
+
+	/** AGGREGATIONS **/
+
+	/*
+	 * Counting set bits one at a time branches on every bit, so
+	 * the aggregations instead count each 4-bit slice of the mask
+	 * in a 16 entry histogram (a fixed number of increments per
+	 * row), and only turn the histograms into pattern counts at
+	 * the end.
+	 */
+
+	/** rows copied out of the mapped columns at a time **/
+	private static final int CHUNK = 4096;
+
+	/** number of 4-bit slices in a mask **/
+	private int slices() {
+		return (numPatterns + 3) >>> 2;
+	}
+
+	/** adds a row's mask to the histograms starting at base **/
+	private static void count(int[] histograms, int base, long mask, int slices) {
+		for (int slice = 0; slice < slices; slice++) {
+			histograms[base + (slice << 4) + ((int) (mask >>> (slice << 2)) & 0xF)]++;
+		}
+	}
+
+	/** pattern counts from the histograms starting at base **/
+	private long[] expand(int[] histograms, int base, long[] counts) {
+		int slices = slices();
+		for (int slice = 0; slice < slices; slice++) {
+			for (int value = 1; value < 16; value++) {
+				int n = histograms[base + (slice << 4) + value];
+				for (int bit = 0; bit < 4; bit++) {
+					if ((value & (1 << bit)) != 0) {
+						counts[(slice << 2) + bit] += n;
+					}
+				}
+			}
+		}
+		return counts;
+	}
+
+	/** bytes before the last '/' of the dictionary string at start **/
+	private int packageLength(int start, int end) {
+		for (int i = end - 1; i >= start; i--) {
+			if (data.get(i) == '/') {
+				return i - start;
+			}
+		}
+		return 0;
+	}
+
+	private boolean sameBytes(int a, int b, int length) {
+		for (int i = 0; i < length; i++) {
+			if (data.get(a + i) != data.get(b + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** how many methods exhibit each pattern, by bit position **/
+	public long[] patternFrequencies() {
+		int slices = slices();
+		int[] histograms = new int[slices << 4];
+		LongBuffer maskColumn = masks.duplicate();
+		long[] chunk = new long[CHUNK];
+		for (int row = 0; row < numMethods; row += CHUNK) {
+			int n = Math.min(CHUNK, numMethods - row);
+			maskColumn.get(chunk, 0, n);
+			for (int i = 0; i < n; i++) {
+				count(histograms, 0, chunk[i], slices);
+			}
+		}
+		return Arrays.copyOf(expand(histograms, 0, new long[slices << 2]),
+				numPatterns);
+	}
+
+	/**
+	 * pattern frequencies for each package (dotted, "" for the
+	 * default package), in name order. Each array holds the counts
+	 * by bit position, then the number of methods in the package.
+	 */
+	public Map<String, long[]> frequenciesByPackage() {
+		int slices = slices();
+		Packages packages = new Packages((slices << 4) + 1);
+		LongBuffer maskColumn = masks.duplicate();
+		IntBuffer classColumn = classIds.duplicate();
+		long[] maskChunk = new long[CHUNK];
+		int[] classChunk = new int[CHUNK];
+		for (int row = 0; row < numMethods; row += CHUNK) {
+			int n = Math.min(CHUNK, numMethods - row);
+			maskColumn.get(maskChunk, 0, n);
+			classColumn.get(classChunk, 0, n);
+			for (int i = 0; i < n; i++) {
+				int base = packages.base(classChunk[i]);
+				count(packages.histograms, base, maskChunk[i], slices);
+				packages.histograms[base + packages.stride - 1]++;
+			}
+		}
+		Map<String, long[]> result = new TreeMap<String, long[]>();
+		for (Map.Entry<String, Integer> entry : packages.numbers.entrySet()) {
+			int base = entry.getValue().intValue() * packages.stride;
+			long[] counts = Arrays.copyOf(expand(packages.histograms, base,
+					new long[slices << 2]), numPatterns + 1);
+			counts[numPatterns] = packages.histograms[base + packages.stride - 1];
+			result.put(entry.getKey(), counts);
+		}
+		return result;
+	}
+
+	/**
+	 * the packages seen by frequenciesByPackage, each with its
+	 * histograms (then its method count) in one shared array
+	 */
+	private class Packages {
+
+		final int stride;
+		int[] histograms;
+		final Map<String, Integer> numbers = new HashMap<String, Integer>();
+
+		/** package number of each class id, worked out on first use **/
+		private final int[] packageOf = new int[numStrings];
+
+		/** the last package name decoded, as a range of the dictionary **/
+		private int lastStart = -1;
+		private int lastLength = -1;
+		private int lastNumber = -1;
+
+		Packages(int stride) {
+			this.stride = stride;
+			this.histograms = new int[16 * stride];
+			Arrays.fill(packageOf, -1);
+		}
+
+		/** where the histograms of the class's package start **/
+		int base(int classId) {
+			int number = packageOf[classId];
+			if (number < 0) {
+				number = lookup(classId);
+				packageOf[classId] = number;
+			}
+			return number * stride;
+		}
+
+		private int lookup(int classId) {
+			int start = offsets.get(classId);
+			int length = packageLength(start, offsets.get(classId + 1));
+			// classes of a package are mostly written together, so
+			// only decode a package name when it changes
+			if (length == lastLength && sameBytes(start, lastStart, length)) {
+				return lastNumber;
+			}
+			byte[] utf8 = new byte[length];
+			ByteBuffer view = data.duplicate();
+			view.position(start);
+			view.get(utf8);
+			String name = new String(utf8, UTF8).replace('/', '.');
+			Integer known = numbers.get(name);
+			if (known == null) {
+				known = Integer.valueOf(numbers.size());
+				numbers.put(name, known);
+				if (numbers.size() * stride > histograms.length) {
+					histograms = Arrays.copyOf(histograms, histograms.length * 2);
+				}
+			}
+			lastStart = start;
+			lastLength = length;
+			lastNumber = known.intValue();
+			return lastNumber;
+		}
+	}
+
+}
@@ -9,7 +9,7 @@ import org.objectweb.asm.MethodAdapter;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Label;
 
-import java.util.ArrayList;
+import java.util.HashSet;
 
 /**
  * simple method scanner (asm-speak adapter) to 
@@ -30,13 +30,13 @@ public class ControlFlowPatternSpotter extends MethodAdapter{
     // method contains loops (back-edge indicates looping
     // construct in general)
     private boolean backwardsJump;
-    // use following list to store labels we have already encountered
+    // use following set to store labels we have already encountered
     // in our linear scan through the method bytecode - this
     // enables us to determine which jumps are backwards - i.e.
-    // to already seen labels
-    // Java Generics:
-    // private ArrayList<String> alreadySeenLabels;
-    private ArrayList alreadySeenLabels;
+    // to already seen labels.
+    // Label does not override equals/hashCode, so this is an
+    // identity set: constant time lookups, no strings per label
+    private HashSet<Label> alreadySeenLabels;
 
     // number of switch instructions (table and lookup) 
     // in this method
@@ -46,7 +46,7 @@ public class ControlFlowPatternSpotter extends MethodAdapter{
 	super(mv);
 	this.numJumpInsns = 0;
 	this.backwardsJump = false;
-	this.alreadySeenLabels = new ArrayList();
+	this.alreadySeenLabels = new HashSet<Label>();
 	this.numSwitchInstructions = 0;
 	
     }
@@ -59,28 +59,23 @@ public class ControlFlowPatternSpotter extends MethodAdapter{
 	
 	// check whether we have already seen
 	// this label
-	String labelStr = label.toString();
-	if (alreadySeenLabels.contains(labelStr)) {
+	if (alreadySeenLabels.contains(label)) {
 	    // this is a backwards jump
 	    this.backwardsJump = true;
-	    // System.out.println("found a backwards jump to label " + labelStr);
+	    // System.out.println("found a backwards jump to label " + label);
 	}
     }
     
     // @Override
     public void visitLabel(Label label) {
-	String labelStr = label.toString();
-	if (!alreadySeenLabels.contains(labelStr)) {
-	    alreadySeenLabels.add(labelStr);
-	    // System.out.println("found new label " + labelStr);
-	}
+	alreadySeenLabels.add(label);
     }
 
     // @Override
     public void visitTableSwitchInsn(int min,
 				     int max,
 				     Label dflt,
-				     Label... labels) {
+				     Label[] labels) {
 	this.numSwitchInstructions++;
     }
 
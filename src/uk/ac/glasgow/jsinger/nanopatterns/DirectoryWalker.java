@@ -0,0 +1,179 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Finds the class files and archives under a directory, for a
+ * scan to analyse while the rest of the tree is still being found.
+ * Every directory is listed as a separate task on a small pool of
+ * lister threads, and each listing submits the listings of its
+ * subdirectories straight away, so slow (e.g. NFS) directories are
+ * listed in parallel. A walker thread puts the paths found into a
+ * bounded queue, depth first and in name order within each
+ * directory, whatever order the listings finish in.
+ * Symbolic links to directories are not followed.
+ */
+public class DirectoryWalker {
+
+	/** marks the end of the walk in the queue **/
+	private static final Found END = new Found(null, null);
+
+	private static final Comparator<Path> BY_NAME = new Comparator<Path>() {
+		public int compare(Path a, Path b) {
+			return a.getFileName().toString().compareTo(b.getFileName().toString());
+		}
+	};
+
+	private final ExecutorService listers;
+	private final BlockingQueue<Found> queue;
+	private final Thread walker;
+
+	public DirectoryWalker(File root, int threads, int capacity) {
+		listers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "directory lister");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		queue = new ArrayBlockingQueue<Found>(capacity);
+		final Path top = root.toPath();
+		final Future<Listing> listing = list(top);
+		walker = new Thread("directory walker") {
+			public void run() {
+				try {
+					walk(top, listing);
+					queue.put(END);
+				} catch (InterruptedException e) {
+					// closed before the walk finished
+				}
+			}
+		};
+		walker.setDaemon(true);
+		walker.start();
+	}
+
+	/**
+	 * the next class file or archive, or null when there are no
+	 * more. Throws an IOException for a directory that could not
+	 * be listed; the walk carries on past it.
+	 */
+	public File next() throws IOException {
+		Found found;
+		try {
+			found = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while walking directories");
+		}
+		if (found == END) {
+			// leave the end in place for any further calls
+			queue.offer(END);
+			return null;
+		}
+		if (found.unlistable != null) {
+			throw new IOException("Failed to list following directory: "
+					+ found.unlistable);
+		}
+		return found.path.toFile();
+	}
+
+	/** stops the walk and its listers **/
+	public void close() {
+		walker.interrupt();
+		listers.shutdownNow();
+	}
+
+	private Future<Listing> list(final Path directory) {
+		return listers.submit(new Callable<Listing>() {
+			public Listing call() throws IOException {
+				return new Listing(directory);
+			}
+		});
+	}
+
+	private void walk(Path directory, Future<Listing> pending)
+			throws InterruptedException {
+		Listing listing;
+		try {
+			listing = pending.get();
+		} catch (ExecutionException e) {
+			queue.put(new Found(null, directory));
+			return;
+		}
+		for (int i = 0; i < listing.entries.size(); i++) {
+			Future<Listing> subdirectory = listing.subdirectories.get(i);
+			if (subdirectory != null) {
+				walk(listing.entries.get(i), subdirectory);
+			} else {
+				queue.put(new Found(listing.entries.get(i), null));
+			}
+		}
+	}
+
+	/**
+	 * the class files, archives and subdirectories of a directory,
+	 * in name order
+	 */
+	private class Listing {
+
+		final List<Path> entries = new ArrayList<Path>();
+
+		/** each subdirectory's listing, null for files **/
+		final List<Future<Listing>> subdirectories = new ArrayList<Future<Listing>>();
+
+		Listing(Path directory) throws IOException {
+			List<Path> all = new ArrayList<Path>();
+			DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+			try {
+				for (Path entry : stream) {
+					all.add(entry);
+				}
+			} finally {
+				stream.close();
+			}
+			Collections.sort(all, BY_NAME);
+			for (Path entry : all) {
+				String name = entry.getFileName().toString();
+				if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+					entries.add(entry);
+					subdirectories.add(list(entry));
+				} else if ((name.endsWith(".class") || TestPatternSpotter.isArchive(name))
+						&& Files.isRegularFile(entry)) {
+					entries.add(entry);
+					subdirectories.add(null);
+				}
+			}
+		}
+	}
+
+	/** a path for the scan, or a directory that could not be listed **/
+	private static class Found {
+
+		final Path path;
+		final Path unlistable;
+
+		Found(Path path, Path unlistable) {
+			this.path = path;
+			this.unlistable = unlistable;
+		}
+	}
+
+}
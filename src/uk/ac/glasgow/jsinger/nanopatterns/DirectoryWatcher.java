@@ -0,0 +1,367 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Keeps the report for a set of directories current while a
+ * compiler writes into them. After an initial scan, each burst of
+ * file system events is collected until things have been quiet for
+ * DEBOUNCE_MILLIS, then only the class files touched in the burst
+ * are analysed again, along with (when the polymorphic pattern is
+ * reported) the class files that refer to a touched class or to one
+ * of its subtypes, as their calls may now resolve differently.
+ * Rows are held in memory per class file, and the report file is
+ * rewritten from them (atomically, by renaming) after each burst,
+ * so readers never see a half-written report.
+ * Only class files are watched; jars in the directories are not.
+ */
+public class DirectoryWatcher {
+
+	/** quiet time that ends a burst of events **/
+	private static final long DEBOUNCE_MILLIS = 200;
+
+	private final AnalysisOptions options;
+	private final List<File> roots;
+	private final File report;
+
+	private final WatchService watcher;
+	private final Map<WatchKey, Path> watched = new HashMap<WatchKey, Path>();
+
+	/** rows of every class file seen, by path **/
+	private final TreeMap<String, Entry> table = new TreeMap<String, Entry>();
+
+	private final TestPatternSpotter spotter;
+
+	public DirectoryWatcher(AnalysisOptions options, List<File> roots,
+			File report) throws IOException {
+		this.options = options;
+		this.roots = roots;
+		this.report = report;
+		this.watcher = FileSystems.getDefault().newWatchService();
+		this.spotter = new TestPatternSpotter(
+				TestPatternSpotter.ANALYSE_DIRECTORY, null, options);
+	}
+
+	/** scans the directories, then watches them until stopped **/
+	public void run() throws IOException {
+		// save the cache when the watch is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				options.close();
+			}
+		});
+		for (File root : roots) {
+			add(root, null);
+		}
+		writeReport();
+		System.err.println("watching " + roots + ", " + table.size()
+				+ " class files in " + report);
+
+		while (true) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			TreeSet<String> touched = new TreeSet<String>();
+			Set<String> changed = new HashSet<String>();
+			boolean overflow = false;
+			// collect the whole burst before analysing anything
+			while (key != null) {
+				overflow |= collect(key, touched);
+				try {
+					key = watcher.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			int dependants = 0;
+			if (overflow) {
+				// events were lost: rescan the lot, with nothing
+				// remembered from the classes read for lookups
+				options.hierarchy.clear();
+				for (File root : roots) {
+					options.hierarchy.addDirectory(root);
+				}
+				table.clear();
+				for (File root : roots) {
+					add(root, null);
+				}
+			} else {
+				// what lookups read of the touched classes and their
+				// subtypes may be stale; the rest, the JDK included,
+				// cannot have changed
+				options.hierarchy.evict(subtypes(touchedClasses(touched)));
+				for (String path : touched) {
+					update(new File(path), changed);
+				}
+				if (!changed.isEmpty()
+						&& (options.patterns & (1L << PatternList.POLYMORPHIC)) != 0) {
+					for (String path : dependants(changed)) {
+						if (!touched.contains(path)) {
+							analyse(new File(path), changed);
+							dependants++;
+						}
+					}
+				}
+			}
+			writeReport();
+			System.err.println("updated " + (overflow ? "all" : "" + touched.size())
+					+ " files and " + dependants + " dependants, " + table.size()
+					+ " class files in " + report);
+		}
+	}
+
+	/**
+	 * adds the key's events to touched, returning true if the
+	 * service overflowed and dropped events
+	 */
+	private boolean collect(WatchKey key, TreeSet<String> touched) {
+		boolean overflow = false;
+		Path directory = watched.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				overflow = true;
+			} else if (directory != null) {
+				touched.add(directory.resolve((Path) event.context()).toString());
+			}
+		}
+		if (!key.reset()) {
+			watched.remove(key);
+		}
+		return overflow;
+	}
+
+	/**
+	 * brings the table up to date for one touched path, adding the
+	 * names of the classes added, changed or removed to changed
+	 */
+	private void update(File file, Set<String> changed) throws IOException {
+		String path = file.getPath();
+		if (file.isDirectory()) {
+			add(file, changed);
+		} else if (file.isFile()) {
+			if (path.endsWith(".class")) {
+				analyse(file, changed);
+			}
+		} else {
+			// deleted: drop the file, or everything under the directory
+			Entry entry = table.remove(path);
+			if (entry != null) {
+				changed.add(entry.name);
+			}
+			Map<String, Entry> under = table.subMap(path + File.separator, path
+					+ (char) (File.separatorChar + 1));
+			for (Entry gone : under.values()) {
+				changed.add(gone.name);
+			}
+			under.clear();
+		}
+	}
+
+	/**
+	 * the names of the classes the touched paths held before the
+	 * burst, and of those they hold now
+	 */
+	private Set<String> touchedClasses(Set<String> touched) {
+		Set<String> names = new HashSet<String>();
+		for (String path : touched) {
+			Entry entry = table.get(path);
+			if (entry != null) {
+				names.add(entry.name);
+			}
+			for (Entry under : table.subMap(path + File.separator, path
+					+ (char) (File.separatorChar + 1)).values()) {
+				names.add(under.name);
+			}
+			addClassNames(new File(path), names);
+		}
+		return names;
+	}
+
+	/** adds the names of the class files at or under file **/
+	private static void addClassNames(File file, Set<String> names) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				addClassNames(f, names);
+			}
+		} else if (file.getName().endsWith(".class")) {
+			try {
+				names.add(new ClassReader(Files.readAllBytes(file.toPath()))
+						.getClassName());
+			} catch (IOException e) {
+				// gone again already
+			} catch (RuntimeException e) {
+				// still being written - analysed when it is done
+			}
+		}
+	}
+
+	/**
+	 * the class files referring to one of the changed classes or to
+	 * a subtype of one, where a call may resolve to a changed class
+	 */
+	private List<String> dependants(Set<String> changed) {
+		Set<String> affected = subtypes(changed);
+		List<String> paths = new ArrayList<String>();
+		for (Map.Entry<String, Entry> entry : table.entrySet()) {
+			if (containsAny(affected, entry.getValue().uses)) {
+				paths.add(entry.getKey());
+			}
+		}
+		return paths;
+	}
+
+	/** the classes named, and every class in the table below one **/
+	private Set<String> subtypes(Set<String> names) {
+		Set<String> affected = new HashSet<String>(names);
+		boolean grew = true;
+		while (grew) {
+			grew = false;
+			for (Entry entry : table.values()) {
+				if (!affected.contains(entry.name)
+						&& containsAny(affected, entry.supertypes)) {
+					affected.add(entry.name);
+					grew = true;
+				}
+			}
+		}
+		return affected;
+	}
+
+	private static boolean containsAny(Set<String> set, Iterable<String> names) {
+		for (String name : names) {
+			if (set.contains(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * watches the directory and analyses every class file under it,
+	 * adding their names to changed unless it is null
+	 */
+	private void add(File directory, Set<String> changed) throws IOException {
+		Path dir = directory.toPath();
+		watched.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY), dir);
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.isDirectory()) {
+				add(file, changed);
+			} else if (file.getName().endsWith(".class")) {
+				analyse(file, changed);
+			}
+		}
+	}
+
+	/** (re-)analyses a class file, adding its old and new names to changed **/
+	private void analyse(File file, Set<String> changed) {
+		try {
+			byte[] classBytes = Files.readAllBytes(file.toPath());
+			Entry entry = new Entry(spotter.analyseClassBytes(classBytes),
+					new ClassReader(classBytes));
+			Entry old = table.put(file.getPath(), entry);
+			if (changed != null) {
+				changed.add(entry.name);
+				if (old != null) {
+					changed.add(old.name);
+				}
+			}
+		} catch (IOException e) {
+			// gone again already - the delete event will follow
+		} catch (RuntimeException e) {
+			// probably still being written: keep the old rows until
+			// the next event for it
+		}
+	}
+
+	private void writeReport() throws IOException {
+		File written = new File(report.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(written);
+		try {
+			TextResultWriter writer = new TextResultWriter(out, options.patterns);
+			for (Entry entry : table.values()) {
+				for (PatternList resultList : entry.rows) {
+					writer.write(resultList);
+				}
+			}
+			writer.close();
+		} finally {
+			out.close();
+		}
+		if (!written.renameTo(report)) {
+			report.delete();
+			if (!written.renameTo(report)) {
+				throw new IOException("cannot replace report " + report);
+			}
+		}
+	}
+
+	/**
+	 * the rows of one class file, with the class's name, its direct
+	 * supertypes and every class its constant pool refers to
+	 */
+	private static class Entry {
+
+		final List<PatternList> rows;
+		final String name;
+		final List<String> supertypes = new ArrayList<String>();
+		final Set<String> uses = new HashSet<String>();
+
+		Entry(List<PatternList> rows, ClassReader cr) {
+			this.rows = rows;
+			this.name = cr.getClassName();
+			if (cr.getSuperName() != null) {
+				supertypes.add(cr.getSuperName());
+			}
+			for (String supertype : cr.getInterfaces()) {
+				supertypes.add(supertype);
+			}
+			int count = cr.readUnsignedShort(8);
+			int longest = 0;
+			for (int i = 1; i < count; i++) {
+				int item = cr.getItem(i);
+				if (item != 0 && cr.b[item - 1] == 1) {
+					longest = Math.max(longest, cr.readUnsignedShort(item));
+				}
+			}
+			char[] buf = new char[longest];
+			for (int i = 1; i < count; i++) {
+				int item = cr.getItem(i);
+				// the second slot of a long or double has no item
+				if (item != 0 && cr.b[item - 1] == 7) {
+					uses.add(cr.readUTF8(item, buf));
+				}
+			}
+		}
+	}
+
+}
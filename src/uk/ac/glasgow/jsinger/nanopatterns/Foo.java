@@ -37,6 +37,58 @@ public class Foo {
 		boolean b = testField;
 	}
 
+	void copyTo(Foo other) {
+		other.testField = testField;
+	}
+
+	static boolean peek(Foo foo) {
+		return foo.testField;
+	}
+
+	void branch(Foo o, boolean c) {
+		Foo p = o;
+		if (c) {
+			p = this;
+		}
+		p.testField = true;
+	}
+
+	static abstract class Task implements Runnable {
+	}
+
+	void start(Task t) {
+		t.run();
+	}
+
+	void loop(Foo o, int n) {
+		Foo p = this;
+		for (int i = 0; i < n; i++) {
+			p.testField = true;
+			p = o;
+		}
+	}
+
+	void counted() {
+		int n = 0;
+		h();
+		n++;
+	}
+
+	void run(Runnable r) {
+		r.run();
+	}
+
+	int size(java.util.AbstractCollection<?> c) {
+		return c.size();
+	}
+
+	int sign(int x) {
+		if (x < 0) {
+			return -1;
+		}
+		return 1;
+	}
+
 	void looper() {
 		for (int i = 0; i < 10; i++) {
 			System.out.println("" + i);
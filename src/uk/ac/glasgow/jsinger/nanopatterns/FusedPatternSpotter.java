@@ -0,0 +1,445 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * single method scanner (asm-speak adapter) that spots all the
+ * instruction-level nanopatterns in one pass.
+ * It combines RecursivePatternSpotter, OOAccessPatternSpotter,
+ * TypeManipulatorPatternSpotter, ControlFlowPatternSpotter,
+ * ArrayAccessPatternSpotter, PolymorphicPatternSpotter,
+ * ReturnPatternSpotter and MethodPatternSpotter, so each
+ * instruction is dispatched once and classified by a single switch
+ * on its opcode, instead of being visited once per spotter.
+ * The separate spotters remain the reference definitions of
+ * each pattern - results must match them exactly.
+ * Every instruction is passed on to the next visitor, e.g. a
+ * PatternDispatcher for the plugin detectors.
+ */
+public class FusedPatternSpotter extends MethodAdapter {
+
+	/** the patterns report() computes, as a mask **/
+	public static final long PATTERNS = ~((1L << PatternList.NO_PARAMS)
+			| (1L << PatternList.NO_RETURN) | (1L << PatternList.THROWS_EXCEPTIONS))
+			& ((1L << PatternList.NUM_PATTERNS) - 1);
+
+	/** identity of the method being scanned **/
+	private final String className;
+	private final String methodName;
+	private final String methodDescriptor;
+
+	/**
+	 * number of instructions visited, counting labels, frames
+	 * and line numbers as ClassNode trees do
+	 */
+	private int numInstrs;
+
+	// method calls (RecursivePatternSpotter, MethodPatternSpotter)
+	private int numMethodCalls;
+	private int numInterfaceMethodCalls;
+	private boolean recursive;
+	private boolean sameNameCall;
+	private boolean jdkClient;
+	/** see MethodPatternSpotter **/
+	private int tailReturn = MethodPatternSpotter.NOT_A_CALL;
+	private boolean tailCaller;
+
+	// object and field access (OOAccessPatternSpotter)
+	private boolean createsNewObjects;
+	private boolean getsStaticFields;
+	private boolean setsStaticFields;
+
+	/** which slots hold this, and the instance field results; null when not wanted **/
+	private final ThisTracker stack;
+
+	// type tests (TypeManipulatorPatternSpotter)
+	private boolean typeManipulator;
+
+	// control flow (ControlFlowPatternSpotter)
+	private int numJumpInsns;
+	private int numSwitchInstructions;
+	private boolean backwardsJump;
+	private final HashSet<Label> alreadySeenLabels;
+
+	// bookkeeping skipped when its patterns are not wanted
+	private final boolean trackLabels;
+	private final boolean matchNames;
+	private final boolean matchJdk;
+
+	/** the field patterns that need stack tracking **/
+	private static final long THIS_PATTERNS = (1L << PatternList.THIS_INSTANCE_FIELD_READER)
+			| (1L << PatternList.THIS_INSTANCE_FIELD_WRITER)
+			| (1L << PatternList.OTHER_INSTANCE_FIELD_READER)
+			| (1L << PatternList.OTHER_INSTANCE_FIELD_WRITER);
+
+	// locals and arrays (ArrayAccessPatternSpotter)
+	private boolean readsLocalVar;
+	private boolean writesLocalVar;
+	private boolean createsArray;
+	private boolean readsArray;
+	private boolean writesArray;
+
+	// calls to abstract methods (PolymorphicPatternSpotter)
+	private boolean polymorphic;
+	/** abstract callee lookups, or null when not wanted **/
+	private final HierarchyIndex hierarchy;
+	/** virtual callees, in triples, when recording calls **/
+	private List<String> callees;
+	private Set<String> seenCallees;
+
+	// returns (ReturnPatternSpotter)
+	private int numReturnInstructions;
+
+	/** for an instance method **/
+	public FusedPatternSpotter(MethodVisitor mv, String className,
+			String methodName, String methodDescriptor) {
+		this(mv, 0, className, methodName, methodDescriptor, PATTERNS,
+				HierarchyIndex.getShared());
+	}
+
+	/**
+	 * spots at least the patterns in the mask; others may be
+	 * reported as 0. access is the method's access flags, and
+	 * hierarchy answers the abstract method lookups.
+	 */
+	public FusedPatternSpotter(MethodVisitor mv, int access, String className,
+			String methodName, String methodDescriptor, long patterns,
+			HierarchyIndex hierarchy) {
+		super(mv);
+		this.className = className;
+		this.methodName = methodName;
+		this.methodDescriptor = methodDescriptor;
+		this.stack = ((patterns & THIS_PATTERNS) == 0) ? null
+				: new ThisTracker((access & Opcodes.ACC_STATIC) != 0);
+		this.trackLabels = (patterns & (1L << PatternList.LOOPING_CODE)) != 0;
+		this.matchNames = (patterns & ((1L << PatternList.RECURSIVE)
+				| (1L << PatternList.SAME_NAME_CALLER))) != 0;
+		this.matchJdk = (patterns & (1L << PatternList.JDK_CLIENT)) != 0;
+		this.hierarchy = ((patterns & (1L << PatternList.POLYMORPHIC)) != 0) ? hierarchy
+				: null;
+		this.alreadySeenLabels = trackLabels ? new HashSet<Label>() : null;
+	}
+
+	// @Override
+	public void visitInsn(int opcode) {
+		numInstrs++;
+		if (stack != null) {
+			stack.insn(opcode);
+		}
+		switch (opcode) {
+		case Opcodes.IALOAD:
+		case Opcodes.LALOAD:
+		case Opcodes.FALOAD:
+		case Opcodes.DALOAD:
+		case Opcodes.AALOAD:
+		case Opcodes.BALOAD:
+		case Opcodes.CALOAD:
+		case Opcodes.SALOAD:
+			readsArray = true;
+			break;
+		case Opcodes.IASTORE:
+		case Opcodes.LASTORE:
+		case Opcodes.FASTORE:
+		case Opcodes.DASTORE:
+		case Opcodes.AASTORE:
+		case Opcodes.BASTORE:
+		case Opcodes.CASTORE:
+		case Opcodes.SASTORE:
+			writesArray = true;
+			break;
+		case Opcodes.RETURN:
+		case Opcodes.IRETURN:
+		case Opcodes.LRETURN:
+		case Opcodes.FRETURN:
+		case Opcodes.DRETURN:
+		case Opcodes.ARETURN:
+			numReturnInstructions++;
+			if (opcode == tailReturn) {
+				tailCaller = true;
+			}
+			break;
+		default:
+			break;
+		}
+		tailReturn = MethodPatternSpotter.NOT_A_CALL;
+		mv.visitInsn(opcode);
+	}
+
+	// @Override
+	public void visitIntInsn(int opcode, int operand) {
+		numInstrs++;
+		tailReturn = MethodPatternSpotter.NOT_A_CALL;
+		if (stack != null) {
+			stack.intInsn(opcode);
+		}
+		if (opcode == Opcodes.NEWARRAY) {
+			createsArray = true;
+		}
+		mv.visitIntInsn(opcode, operand);
+	}
+
+	// @Override
+	public void visitVarInsn(int opcode, int var) {
+		numInstrs++;
+		tailReturn = MethodPatternSpotter.NOT_A_CALL;
+		if (stack != null) {
+			stack.varInsn(opcode, var);
+		}
+		switch (opcode) {
+		case Opcodes.ALOAD:
+		case Opcodes.ILOAD:
+		case Opcodes.LLOAD:
+		case Opcodes.FLOAD:
+		case Opcodes.DLOAD:
+			readsLocalVar = true;
+			break;
+		case Opcodes.ISTORE:
+		case Opcodes.LSTORE:
+		case Opcodes.FSTORE:
+		case Opcodes.DSTORE:
+		case Opcodes.ASTORE:
+			writesLocalVar = true;
+			break;
+		default:
+			break;
+		}
+		mv.visitVarInsn(opcode, var);
+	}
+
+	// @Override
+	public void visitTypeInsn(int opcode, String type) {
+		numInstrs++;
+		tailReturn = MethodPatternSpotter.NOT_A_CALL;
+		if (stack != null) {
+			stack.typeInsn(opcode);
+		}
+		switch (opcode) {
+		case Opcodes.NEW:
+			createsNewObjects = true;
+			break;
+		case Opcodes.ANEWARRAY:
+			createsArray = true;
+			break;
+		case Opcodes.CHECKCAST:
+		case Opcodes.INSTANCEOF:
+			typeManipulator = true;
+			break;
+		default:
+			break;
+		}
+		mv.visitTypeInsn(opcode, type);
+	}
+
+	// @Override
+	public void visitFieldInsn(int opcode, String owner, String name,
+			String desc) {
+		numInstrs++;
+		tailReturn = MethodPatternSpotter.NOT_A_CALL;
+		if (stack != null) {
+			stack.fieldInsn(opcode, desc);
+		}
+		switch (opcode) {
+		case Opcodes.GETSTATIC:
+			getsStaticFields = true;
+			break;
+		case Opcodes.PUTSTATIC:
+			setsStaticFields = true;
+			break;
+		default:
+			break;
+		}
+		mv.visitFieldInsn(opcode, owner, name, desc);
+	}
+
+	// @Override
+	public void visitMethodInsn(int opcode, String owner, String name,
+			String desc) {
+		numInstrs++;
+		if (stack != null) {
+			stack.methodInsn(opcode, desc);
+		}
+		numMethodCalls++;
+		if (opcode == Opcodes.INVOKEINTERFACE) {
+			numInterfaceMethodCalls++;
+			polymorphic = true;
+		} else if (opcode == Opcodes.INVOKEVIRTUAL) {
+			if (!polymorphic && hierarchy != null
+					&& hierarchy.isAbstractMethod(owner, name, desc)) {
+				polymorphic = true;
+			}
+			if (callees != null && numInterfaceMethodCalls == 0
+					&& seenCallees.add(owner + '.' + name + desc)) {
+				callees.add(owner);
+				callees.add(name);
+				callees.add(desc);
+			}
+		}
+		tailReturn = MethodPatternSpotter.returnOpcode(desc);
+		if (matchJdk && owner.contains("java")) {
+			jdkClient = true;
+		}
+
+		if (matchNames && name.equals(methodName)) {
+			if (owner.equals(className) && desc.equals(methodDescriptor)) {
+				recursive = true;
+			} else {
+				sameNameCall = true;
+			}
+		}
+		mv.visitMethodInsn(opcode, owner, name, desc);
+	}
+
+	// @Override
+	public void visitJumpInsn(int opcode, Label label) {
+		numInstrs++;
+		tailReturn = MethodPatternSpotter.NOT_A_CALL;
+		if (stack != null) {
+			stack.jumpInsn(opcode, label);
+		}
+		numJumpInsns++;
+		if (trackLabels && alreadySeenLabels.contains(label)) {
+			backwardsJump = true;
+		}
+		mv.visitJumpInsn(opcode, label);
+	}
+
+	// @Override
+	public void visitLabel(Label label) {
+		numInstrs++;
+		if (stack != null) {
+			stack.label(label);
+		}
+		if (trackLabels) {
+			alreadySeenLabels.add(label);
+		}
+		mv.visitLabel(label);
+	}
+
+	// @Override
+	public void visitTableSwitchInsn(int min, int max, Label dflt,
+			Label[] labels) {
+		numInstrs++;
+		tailReturn = MethodPatternSpotter.NOT_A_CALL;
+		if (stack != null) {
+			stack.switchInsn(dflt, labels);
+		}
+		numSwitchInstructions++;
+		mv.visitTableSwitchInsn(min, max, dflt, labels);
+	}
+
+	// @Override
+	public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+		numInstrs++;
+		tailReturn = MethodPatternSpotter.NOT_A_CALL;
+		if (stack != null) {
+			stack.switchInsn(dflt, labels);
+		}
+		numSwitchInstructions++;
+		mv.visitLookupSwitchInsn(dflt, keys, labels);
+	}
+
+	// @Override
+	public void visitLdcInsn(Object cst) {
+		numInstrs++;
+		tailReturn = MethodPatternSpotter.NOT_A_CALL;
+		if (stack != null) {
+			stack.ldcInsn(cst);
+		}
+		mv.visitLdcInsn(cst);
+	}
+
+	// @Override
+	public void visitIincInsn(int var, int increment) {
+		numInstrs++;
+		tailReturn = MethodPatternSpotter.NOT_A_CALL;
+		if (stack != null) {
+			stack.iincInsn(var);
+		}
+		mv.visitIincInsn(var, increment);
+	}
+
+	// @Override
+	public void visitFrame(int type, int nLocal, Object[] local, int nStack,
+			Object[] stack) {
+		numInstrs++;
+		mv.visitFrame(type, nLocal, local, nStack, stack);
+	}
+
+	// @Override
+	public void visitLineNumber(int line, Label start) {
+		numInstrs++;
+		mv.visitLineNumber(line, start);
+	}
+
+	// @Override
+	public void visitMultiANewArrayInsn(String desc, int dims) {
+		numInstrs++;
+		tailReturn = MethodPatternSpotter.NOT_A_CALL;
+		if (stack != null) {
+			stack.multiANewArrayInsn(dims);
+		}
+		createsArray = true;
+		mv.visitMultiANewArrayInsn(desc, dims);
+	}
+
+	/**
+	 * also records the calls that decide the polymorphic pattern,
+	 * for report to attach to the row as a CallSummary. Call
+	 * before visiting any instructions.
+	 */
+	public void recordCalls() {
+		if (hierarchy != null) {
+			callees = new ArrayList<String>();
+			seenCallees = new HashSet<String>();
+		}
+	}
+
+	public int getNumInstrs() {
+		return numInstrs;
+	}
+
+	/**
+	 * copies the computed nanopatterns into the given result row
+	 */
+	public void report(PatternList resultList) {
+		resultList.set(PatternList.RECURSIVE, recursive);
+		resultList.set(PatternList.SAME_NAME_CALLER, sameNameCall);
+		resultList.set(PatternList.LEAF, (numMethodCalls == 0));
+		resultList.set(PatternList.OBJECT_CREATOR, createsNewObjects);
+		if (stack != null) {
+			resultList.set(PatternList.THIS_INSTANCE_FIELD_READER, stack.readsThisFields());
+			resultList.set(PatternList.THIS_INSTANCE_FIELD_WRITER, stack.writesThisFields());
+			resultList.set(PatternList.OTHER_INSTANCE_FIELD_READER, stack.readsOtherFields());
+			resultList.set(PatternList.OTHER_INSTANCE_FIELD_WRITER, stack.writesOtherFields());
+		}
+		resultList.set(PatternList.STATIC_FIELD_READER, getsStaticFields);
+		resultList.set(PatternList.STATIC_FIELD_WRITER, setsStaticFields);
+		resultList.set(PatternList.TYPE_MANIPULATOR, typeManipulator);
+		resultList.set(PatternList.STRAIGHT_LINE_CODE, (numJumpInsns == 0 && numSwitchInstructions == 0));
+		resultList.set(PatternList.LOOPING_CODE, backwardsJump);
+		resultList.set(PatternList.SWITCHER, (numSwitchInstructions > 0));
+		resultList.set(PatternList.LOCAL_VAR_READER, readsLocalVar);
+		resultList.set(PatternList.LOCAL_VAR_WRITER, writesLocalVar);
+		resultList.set(PatternList.ARRAY_CREATOR, createsArray);
+		resultList.set(PatternList.ARRAY_READER, readsArray);
+		resultList.set(PatternList.ARRAY_WRITER, writesArray);
+		resultList.set(PatternList.POLYMORPHIC, polymorphic);
+		if (callees != null) {
+			resultList.calls = new CallSummary(numInterfaceMethodCalls > 0, callees);
+		}
+		resultList.set(PatternList.SINGLE_RETURNER, (numReturnInstructions == 1));
+		resultList.set(PatternList.MULTIPLE_RETURNER, (numReturnInstructions > 1));
+		resultList.set(PatternList.CLIENT, (numInterfaceMethodCalls > 0 && numMethodCalls == numInterfaceMethodCalls));
+		resultList.set(PatternList.JDK_CLIENT, jdkClient);
+		resultList.set(PatternList.TAIL_CALLER, tailCaller);
+	}
+
+}
@@ -0,0 +1,573 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Shared index of which methods are abstract, used to spot
+ * polymorphic calls.
+ * Each class is read at most once per index (code is skipped),
+ * from the scanned inputs registered with addJar / addDirectory /
+ * addArchive, or else from the system class path and boot class
+ * path. Archives are registered as the scan meets them, so a class
+ * only found in an archive scanned later counts as missing until
+ * then. Each is registered once per canonical path, and read again
+ * only when its size or time changes. Registered archives stay
+ * mapped until the index is cleared; compressed nested ones are
+ * summarised when registered rather than kept in memory.
+ * Every (owner, name, desc) answer is memoized, including
+ * negative answers and classes that cannot be found, so repeated
+ * lookups are a single hash probe. Safe for concurrent use.
+ */
+public class HierarchyIndex {
+
+	private static final HierarchyIndex SHARED = new HierarchyIndex();
+
+	/** placeholder for classes we cannot locate **/
+	private static final ClassSummary MISSING = new ClassSummary();
+
+	private final ConcurrentHashMap<String, ClassSummary> classes = new ConcurrentHashMap<String, ClassSummary>();
+	private final ConcurrentHashMap<String, Boolean> abstractMethods = new ConcurrentHashMap<String, Boolean>();
+
+	/** scanned inputs: internal class name -> where to read it **/
+	private final ConcurrentHashMap<String, Source> sources = new ConcurrentHashMap<String, Source>();
+	private final CopyOnWriteArrayList<File> directories = new CopyOnWriteArrayList<File>();
+	private final Map<String, JarFile> openJars = new HashMap<String, JarFile>();
+	private final List<MappedJarReader> archives = new CopyOnWriteArrayList<MappedJarReader>();
+	/** registered archives, by canonical name, so each is read once **/
+	private final Map<String, Registration> registered = new HashMap<String, Registration>();
+
+	/** lookup counters, for AnalysisStats **/
+	private final LongAdder lookups = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder loads = new LongAdder();
+	private final LongAdder loadNanos = new LongAdder();
+
+	/**
+	 * index backed only by the system and boot class paths, for
+	 * spotters used outside of a TestPatternSpotter run
+	 */
+	public static HierarchyIndex getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * makes the classes in a scanned jar, and in the STORED archives
+	 * nested in it, visible to lookups. Compressed nested archives
+	 * are left to addArchive, when the scan opens them.
+	 */
+	public void addJar(String path) throws IOException {
+		synchronized (registered) {
+			String key = canonicalName(path);
+			Registration registration = register(key);
+			if (registration == null) {
+				return;
+			}
+			MappedJarReader mapped;
+			try {
+				mapped = new MappedJarReader(path);
+			} catch (IOException e) {
+				// e.g. zip64 or over 2GB - list it with JarFile instead
+				mapped = null;
+			}
+			if (mapped != null) {
+				addMapped(key, mapped, registration);
+				return;
+			}
+			JarFile jar = new JarFile(path);
+			try {
+				Enumeration<JarEntry> enums = jar.entries();
+				while (enums.hasMoreElements()) {
+					String name = enums.nextElement().getName();
+					if (name.endsWith(".class")) {
+						addSource(className(name), new Source(key, registration));
+					}
+				}
+			} finally {
+				jar.close();
+			}
+		}
+	}
+
+	/**
+	 * makes the classes in an archive the scan has opened visible to
+	 * lookups; name is the archive's path, with !/ before each nested
+	 * entry name. A mapped archive is shared, not copied; the classes
+	 * of one held in memory are read now, so that it can be released.
+	 */
+	public void addArchive(String name, MappedJarReader jar) {
+		synchronized (registered) {
+			String key = canonicalName(name);
+			Registration registration = register(key);
+			if (registration == null) {
+				return;
+			}
+			if (jar.isMapped()) {
+				try {
+					addMapped(key, jar.share(key), registration);
+				} catch (IOException e) {
+					// reported when the archive itself is scanned
+				}
+				return;
+			}
+			for (int i = 0; i < jar.getEntryCount(); i++) {
+				String entry = jar.getName(i);
+				if (!entry.endsWith(".class")) {
+					continue;
+				}
+				String className = className(entry);
+				ClassSummary known = classes.get(className);
+				if (sources.containsKey(className)
+						|| (known != null && known != MISSING)) {
+					continue;
+				}
+				try {
+					byte[] bytes = jar.read(i, null);
+					ClassSummary summary = new ClassSummary();
+					new ClassReader(bytes, 0, jar.getSize(i)).accept(summary,
+							ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG
+									| ClassReader.SKIP_FRAMES);
+					registration.classNames.add(className);
+					if (classes.put(className, summary) == MISSING) {
+						abstractMethods.clear();
+					}
+				} catch (Exception e) {
+					// unreadable class - treat as not found
+				}
+			}
+		}
+	}
+
+	private void addMapped(String key, MappedJarReader jar,
+			Registration registration) {
+		registration.archives.add(jar);
+		archives.add(jar);
+		for (int i = 0; i < jar.getEntryCount(); i++) {
+			String entry = jar.getName(i);
+			if (entry.endsWith(".class")) {
+				addSource(className(entry), new Source(jar, i, registration));
+			} else if (TestPatternSpotter.isArchive(entry) && jar.isStored(i)) {
+				// a view of this mapping, so free to register now
+				String inner = key + "!/" + entry;
+				Registration nested = register(inner);
+				if (nested != null) {
+					try {
+						addMapped(inner, jar.openNested(i, inner), nested);
+					} catch (IOException e) {
+						// reported when the archive itself is scanned
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * the first registration of a class wins; one looked up before
+	 * it was registered is no longer missing, so answers are redone
+	 */
+	private void addSource(String className, Source source) {
+		if (sources.putIfAbsent(className, source) == null) {
+			source.registration.classNames.add(className);
+			if (classes.remove(className, MISSING)) {
+				abstractMethods.clear();
+			}
+		}
+	}
+
+	/**
+	 * records an archive about to be read, returning null if it was
+	 * read before and its file has not changed size or time since.
+	 * A changed one is forgotten first, with the archives nested in
+	 * it. Called holding the registered lock.
+	 */
+	private Registration register(String key) {
+		int nested = key.indexOf("!/");
+		File file = new File((nested < 0) ? key : key.substring(0, nested));
+		long size = file.length();
+		long modified = file.lastModified();
+		Registration old = registered.get(key);
+		if (old != null && old.size == size && old.modified == modified) {
+			return null;
+		}
+		if (old != null) {
+			forget(key);
+		}
+		Registration registration = new Registration(size, modified);
+		registered.put(key, registration);
+		return registration;
+	}
+
+	/**
+	 * drops the classes of an archive that has changed, and every
+	 * answer, which may have depended on them. Its readers are left
+	 * open for lookups still using them, and go when collected.
+	 */
+	private void forget(String key) {
+		Iterator<Map.Entry<String, Registration>> it = registered.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Registration> e = it.next();
+			if (!e.getKey().equals(key) && !e.getKey().startsWith(key + "!/")) {
+				continue;
+			}
+			Registration registration = e.getValue();
+			for (String className : registration.classNames) {
+				Source source = sources.get(className);
+				if (source != null && source.registration == registration) {
+					sources.remove(className, source);
+				}
+				classes.remove(className);
+			}
+			archives.removeAll(registration.archives);
+			it.remove();
+		}
+		synchronized (openJars) {
+			openJars.remove(key);
+		}
+		abstractMethods.clear();
+	}
+
+	/** the path made canonical, keeping any nested entry names **/
+	private static String canonicalName(String name) {
+		int nested = name.indexOf("!/");
+		File file = new File((nested < 0) ? name : name.substring(0, nested));
+		String path;
+		try {
+			path = file.getCanonicalPath();
+		} catch (IOException e) {
+			path = file.getAbsolutePath();
+		}
+		return (nested < 0) ? path : path + name.substring(nested);
+	}
+
+	/**
+	 * makes the classes under a scanned directory visible to lookups.
+	 * Only the root is recorded, once: archives found under it are
+	 * registered as the scan meets them.
+	 */
+	public void addDirectory(File root) {
+		try {
+			directories.addIfAbsent(root.getCanonicalFile());
+		} catch (IOException e) {
+			directories.addIfAbsent(root.getAbsoluteFile());
+		}
+	}
+
+	private static String className(String entryName) {
+		return entryName.substring(0, entryName.length() - ".class".length());
+	}
+
+	/**
+	 * is the method that an invoke of owner.name desc resolves to
+	 * abstract? Looks in owner first, then up its superclasses, then
+	 * through the interfaces they implement, nearest first.
+	 * Unknown classes and methods count as not abstract.
+	 */
+	public boolean isAbstractMethod(String owner, String name, String desc) {
+		String key = owner + '.' + name + desc;
+		Boolean known = abstractMethods.get(key);
+		lookups.increment();
+		if (known != null) {
+			hits.increment();
+		} else {
+			known = Boolean.valueOf(resolve(owner, name + desc));
+			abstractMethods.putIfAbsent(key, known);
+		}
+		return known.booleanValue();
+	}
+
+	private boolean resolve(String owner, String method) {
+		// interfaces still to search, in the order they are met
+		List<String> interfaces = new ArrayList<String>();
+		String current = owner;
+		while (current != null) {
+			ClassSummary summary = getSummary(current);
+			Boolean isAbstract = summary.methods.get(method);
+			if (isAbstract != null) {
+				return isAbstract.booleanValue();
+			}
+			addAll(interfaces, summary.interfaces);
+			current = summary.superName;
+		}
+		for (int i = 0; i < interfaces.size(); i++) {
+			ClassSummary summary = getSummary(interfaces.get(i));
+			Boolean isAbstract = summary.methods.get(method);
+			if (isAbstract != null) {
+				return isAbstract.booleanValue();
+			}
+			addAll(interfaces, summary.interfaces);
+		}
+		return false;
+	}
+
+	private static void addAll(List<String> interfaces, String[] more) {
+		if (more != null) {
+			for (String name : more) {
+				if (!interfaces.contains(name)) {
+					interfaces.add(name);
+				}
+			}
+		}
+	}
+
+	private ClassSummary getSummary(String className) {
+		ClassSummary summary = classes.get(className);
+		if (summary == null) {
+			long start = System.nanoTime();
+			summary = load(className);
+			loads.increment();
+			loadNanos.add(System.nanoTime() - start);
+			ClassSummary raced = classes.putIfAbsent(className, summary);
+			if (raced != null) {
+				summary = raced;
+			}
+		}
+		return summary;
+	}
+
+	private ClassSummary load(String className) {
+		if (className.startsWith("[")) {
+			// array types declare no methods of their own
+			return MISSING;
+		}
+		InputStream is = null;
+		try {
+			is = open(className);
+			if (is == null) {
+				return MISSING;
+			}
+			ClassSummary summary = new ClassSummary();
+			new ClassReader(is).accept(summary, ClassReader.SKIP_CODE
+					| ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+			return summary;
+		} catch (Exception e) {
+			// unreadable class - treat as not found
+			return MISSING;
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private InputStream open(String className) throws IOException {
+		Source source = sources.get(className);
+		if (source != null && source.archive != null) {
+			return new ByteArrayInputStream(source.archive.read(source.entry,
+					null), 0, source.archive.getSize(source.entry));
+		}
+		if (source != null) {
+			String jarPath = source.jarPath;
+			JarFile jar;
+			synchronized (openJars) {
+				jar = openJars.get(jarPath);
+				if (jar == null) {
+					jar = new JarFile(jarPath);
+					openJars.put(jarPath, jar);
+				}
+			}
+			JarEntry entry = jar.getJarEntry(className + ".class");
+			if (entry != null) {
+				return jar.getInputStream(entry);
+			}
+		}
+		for (File root : directories) {
+			File f = new File(root, className + ".class");
+			if (f.isFile()) {
+				return new FileInputStream(f);
+			}
+		}
+		return ClassLoader.getSystemResourceAsStream(className + ".class");
+	}
+
+	/** calls to isAbstractMethod **/
+	public long getLookups() {
+		return lookups.sum();
+	}
+
+	/** lookups answered from an earlier answer **/
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/** classes read to answer lookups **/
+	public long getLoads() {
+		return loads.sum();
+	}
+
+	public long getLoadNanos() {
+		return loadNanos.sum();
+	}
+
+	/**
+	 * forgets what was read of the named classes, and the answers
+	 * for their methods, for when their class files have changed.
+	 * Answers found through a named class are only dropped if the
+	 * caller names its subtypes too.
+	 */
+	public void evict(Set<String> classNames) {
+		for (String className : classNames) {
+			classes.remove(className);
+		}
+		Iterator<String> it = abstractMethods.keySet().iterator();
+		while (it.hasNext()) {
+			String key = it.next();
+			// owner.name(desc - names hold neither '.' nor '('
+			String owner = key.substring(0, key.lastIndexOf('.', key.indexOf('(')));
+			if (classNames.contains(owner)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * forgets every class read and every answer given, for when the
+	 * scanned inputs may have changed
+	 */
+	public void clear() {
+		close();
+		classes.clear();
+		abstractMethods.clear();
+		sources.clear();
+		directories.clear();
+		archives.clear();
+		synchronized (registered) {
+			registered.clear();
+		}
+	}
+
+	/** closes any scanned jars opened for lookups **/
+	public void close() {
+		for (MappedJarReader archive : archives) {
+			archive.close();
+		}
+		synchronized (openJars) {
+			for (JarFile jar : openJars.values()) {
+				try {
+					jar.close();
+				} catch (IOException e) {
+				}
+			}
+			openJars.clear();
+		}
+	}
+
+	/**
+	 * a registered class file: an entry of a mapped archive, or of
+	 * a jar too big to map, read through JarFile
+	 */
+	private static class Source {
+
+		final MappedJarReader archive;
+		final int entry;
+		final String jarPath;
+		final Registration registration;
+
+		Source(MappedJarReader archive, int entry, Registration registration) {
+			this.archive = archive;
+			this.entry = entry;
+			this.jarPath = null;
+			this.registration = registration;
+		}
+
+		Source(String jarPath, Registration registration) {
+			this.archive = null;
+			this.entry = -1;
+			this.jarPath = jarPath;
+			this.registration = registration;
+		}
+	}
+
+	/**
+	 * a registered archive: its file's size and time when it was
+	 * read, and what it added, to drop if the file changes
+	 */
+	private static class Registration {
+
+		final long size;
+		final long modified;
+		final List<String> classNames = new ArrayList<String>();
+		final List<MappedJarReader> archives = new ArrayList<MappedJarReader>();
+
+		Registration(long size, long modified) {
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+	/**
+	 * superclass, interfaces and declared methods of one class,
+	 * with whether each method is abstract
+	 */
+	private static class ClassSummary implements ClassVisitor {
+
+		String superName;
+		String[] interfaces;
+		final Map<String, Boolean> methods = new HashMap<String, Boolean>();
+
+		public void visit(int version, int access, String name,
+				String signature, String superName, String[] interfaces) {
+			this.superName = superName;
+			this.interfaces = interfaces;
+		}
+
+		public void visitSource(String source, String debug) {
+		}
+
+		public void visitOuterClass(String owner, String name, String desc) {
+		}
+
+		public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+			return null;
+		}
+
+		public void visitAttribute(Attribute attr) {
+		}
+
+		public void visitInnerClass(String name, String outerName,
+				String innerName, int access) {
+		}
+
+		public FieldVisitor visitField(int access, String name, String desc,
+				String signature, Object value) {
+			return null;
+		}
+
+		public MethodVisitor visitMethod(int access, String name, String desc,
+				String signature, String[] exceptions) {
+			methods.put(name + desc,
+					Boolean.valueOf((access & Opcodes.ACC_ABSTRACT) != 0));
+			return null;
+		}
+
+		public void visitEnd() {
+		}
+	}
+
+}
@@ -0,0 +1,293 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads jar entries straight out of a memory-mapped jar, parsing
+ * the zip central directory itself instead of going through
+ * JarFile and per-entry streams.
+ * Entries are inflated (or, for STORED entries, copied directly
+ * out of the mapping) into a caller-supplied buffer, so a scanner
+ * can reuse one buffer for every class it reads.
+ * Jars over 2GB and zip64 archives are not supported; the
+ * constructor throws an IOException for them so that callers can
+ * fall back to JarFile. Safe for concurrent reads.
+ * Nested archives can be read without extracting them: a STORED
+ * inner jar is just a slice of the outer buffer.
+ */
+public class MappedJarReader {
+
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+	private static final int END_BYTES = 22;
+	private static final int CENTRAL_BYTES = 46;
+	private static final int LOCAL_BYTES = 30;
+	private static final int MAX_COMMENT_BYTES = 0xFFFF;
+
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	private static final int FLAG_ENCRYPTED = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** the whole archive, as a mapping or a slice of an outer one **/
+	private final ByteBuffer map;
+
+	/** per entry, in central directory order **/
+	private final String[] names;
+	private final int[] methods;
+	private final int[] flags;
+	private final int[] compressedSizes;
+	private final int[] sizes;
+	private final int[] localOffsets;
+
+	/** inflaters not currently in use by any reader thread **/
+	private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+	private volatile boolean closed;
+
+	public MappedJarReader(String path) throws IOException {
+		this(map(path), path);
+	}
+
+	/**
+	 * reads the archive held in the buffer, e.g. a nested jar;
+	 * path is only used in error messages
+	 */
+	public MappedJarReader(ByteBuffer archive, String path) throws IOException {
+		map = archive.slice();
+		map.order(ByteOrder.LITTLE_ENDIAN);
+
+		int end = findEndRecord();
+		if (end < 0) {
+			throw new IOException("not a zip file: " + path);
+		}
+		int count = map.getShort(end + 10) & 0xFFFF;
+		long directoryOffset = map.getInt(end + 16) & 0xFFFFFFFFL;
+		if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+			throw new IOException("zip64 jars are not supported: " + path);
+		}
+
+		names = new String[count];
+		methods = new int[count];
+		flags = new int[count];
+		compressedSizes = new int[count];
+		sizes = new int[count];
+		localOffsets = new int[count];
+
+		int position = (int) directoryOffset;
+		for (int i = 0; i < count; i++) {
+			if (position + CENTRAL_BYTES > end
+					|| map.getInt(position) != CENTRAL_SIGNATURE) {
+				throw new IOException("corrupt central directory: " + path);
+			}
+			flags[i] = map.getShort(position + 8) & 0xFFFF;
+			methods[i] = map.getShort(position + 10) & 0xFFFF;
+			compressedSizes[i] = map.getInt(position + 20);
+			sizes[i] = map.getInt(position + 24);
+			int nameLength = map.getShort(position + 28) & 0xFFFF;
+			int extraLength = map.getShort(position + 30) & 0xFFFF;
+			int commentLength = map.getShort(position + 32) & 0xFFFF;
+			localOffsets[i] = map.getInt(position + 42);
+			if (compressedSizes[i] < 0 || sizes[i] < 0 || localOffsets[i] < 0) {
+				throw new IOException("zip64 jars are not supported: " + path);
+			}
+			byte[] name = new byte[nameLength];
+			ByteBuffer b = map.duplicate();
+			b.position(position + CENTRAL_BYTES);
+			b.get(name);
+			names[i] = new String(name, UTF8);
+			position += CENTRAL_BYTES + nameLength + extraLength + commentLength;
+		}
+	}
+
+	private static ByteBuffer map(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("jar too large to map: " + path);
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// the mapping stays valid once the file is closed
+			file.close();
+		}
+	}
+
+	/** the end of central directory record sits behind any comment **/
+	private int findEndRecord() {
+		int last = map.capacity() - END_BYTES;
+		int first = Math.max(0, last - MAX_COMMENT_BYTES);
+		for (int position = last; position >= first; position--) {
+			if (map.getInt(position) == END_SIGNATURE) {
+				return position;
+			}
+		}
+		return -1;
+	}
+
+	public int getEntryCount() {
+		return names.length;
+	}
+
+	public String getName(int entry) {
+		return names[entry];
+	}
+
+	public boolean isDirectory(int entry) {
+		return names[entry].endsWith("/");
+	}
+
+	/** uncompressed size of the entry **/
+	public int getSize(int entry) {
+		return sizes[entry];
+	}
+
+	/**
+	 * Reads the entry into the start of buffer, returning buffer, or
+	 * a larger replacement when it is too small (or null).
+	 * The entry occupies the first getSize(entry) bytes.
+	 */
+	public byte[] read(int entry, byte[] buffer) throws IOException {
+		int size = sizes[entry];
+		if (buffer == null || buffer.length < size) {
+			buffer = new byte[Math.max(size, buffer == null ? 0 : buffer.length * 2)];
+		}
+		ByteBuffer data = data(entry);
+		switch (methods[entry]) {
+		case STORED:
+			if (size > data.remaining()) {
+				throw new IOException("truncated jar entry: " + names[entry]);
+			}
+			data.get(buffer, 0, size);
+			return buffer;
+		case DEFLATED:
+			inflate(data, buffer, size, entry);
+			return buffer;
+		default:
+			throw new IOException("unsupported compression method "
+					+ methods[entry] + ": " + names[entry]);
+		}
+	}
+
+	public boolean isStored(int entry) {
+		return methods[entry] == STORED;
+	}
+
+	/**
+	 * the bytes of a STORED entry, as a view of this archive's
+	 * buffer rather than a copy
+	 */
+	public ByteBuffer slice(int entry) throws IOException {
+		if (!isStored(entry)) {
+			throw new IOException("compressed jar entry: " + names[entry]);
+		}
+		return data(entry).slice();
+	}
+
+	/**
+	 * opens an archive entry (e.g. a jar inside a war) as an archive
+	 * of its own: a slice of this one when STORED, otherwise
+	 * inflated into memory. name is only used in error messages.
+	 */
+	public MappedJarReader openNested(int entry, String name) throws IOException {
+		ByteBuffer archive = isStored(entry) ? slice(entry)
+				: ByteBuffer.wrap(read(entry, null), 0, getSize(entry));
+		return new MappedJarReader(archive, name);
+	}
+
+	/**
+	 * is the archive read from a file mapping (or a slice of one),
+	 * rather than held in memory?
+	 */
+	public boolean isMapped() {
+		return map.isDirect();
+	}
+
+	/**
+	 * a reader of its own over the same bytes, for a user that
+	 * outlives this one; nothing is copied
+	 */
+	public MappedJarReader share(String name) throws IOException {
+		return new MappedJarReader(map, name);
+	}
+
+	/** the entry's raw (possibly compressed) bytes within the archive **/
+	private ByteBuffer data(int entry) throws IOException {
+		if ((flags[entry] & FLAG_ENCRYPTED) != 0) {
+			throw new IOException("encrypted jar entry: " + names[entry]);
+		}
+		int local = localOffsets[entry];
+		if (local + LOCAL_BYTES > map.capacity()
+				|| map.getInt(local) != LOCAL_SIGNATURE) {
+			throw new IOException("corrupt jar entry: " + names[entry]);
+		}
+		// the local header may carry a different extra field
+		int start = local + LOCAL_BYTES + (map.getShort(local + 26) & 0xFFFF)
+				+ (map.getShort(local + 28) & 0xFFFF);
+		int compressedSize = compressedSizes[entry];
+		if (start + compressedSize > map.capacity()) {
+			throw new IOException("truncated jar entry: " + names[entry]);
+		}
+		ByteBuffer data = map.duplicate();
+		data.limit(start + compressedSize);
+		data.position(start);
+		return data;
+	}
+
+	/** inflates straight out of the mapping, with no input copy **/
+	private void inflate(ByteBuffer data, byte[] buffer, int size, int entry)
+			throws IOException {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		try {
+			inflater.setInput(data);
+			int length = 0;
+			while (length < size) {
+				int n = inflater.inflate(buffer, length, size - length);
+				if (n == 0 && (inflater.finished() || inflater.needsInput()
+						|| inflater.needsDictionary())) {
+					throw new IOException("truncated jar entry: " + names[entry]);
+				}
+				length += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("corrupt jar entry: " + names[entry]);
+		} finally {
+			inflater.reset();
+			inflaters.add(inflater);
+			// returned after close: end it, not leave it pooled
+			if (closed) {
+				endInflaters();
+			}
+		}
+	}
+
+	/** releases the inflaters; the mapping goes when it is collected **/
+	public void close() {
+		closed = true;
+		endInflaters();
+	}
+
+	private void endInflaters() {
+		Inflater inflater;
+		while ((inflater = inflaters.poll()) != null) {
+			inflater.end();
+		}
+	}
+
+}
@@ -4,6 +4,7 @@
 
 package uk.ac.glasgow.jsinger.nanopatterns;
 
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.MethodAdapter;
 import org.objectweb.asm.Opcodes;
@@ -24,8 +25,13 @@ public class MethodPatternSpotter extends MethodAdapter {
     // private int numDynamicMethodCalls; - @TODO
 
     private boolean jdkClient;
-    private boolean lastInstructionWasMethodCall;
-    private boolean tailCaller;
+    // the return that would hand back the previous instruction's
+    // result, if that was a call; NOT_A_CALL otherwise
+    private int tailReturn;
+    private boolean resultTailCaller;
+    private boolean voidTailCaller;
+
+    static final int NOT_A_CALL = -1;
 
     public MethodPatternSpotter(MethodVisitor mv) {
 	super(mv);
@@ -33,8 +39,31 @@ public class MethodPatternSpotter extends MethodAdapter {
 	this.numInterfaceMethodCalls = 0;
 	// this.numDynamicMethodCalls = 0; @TODO
 	this.jdkClient = false;
-	this.lastInstructionWasMethodCall = false;
-	this.tailCaller = false;
+	this.tailReturn = NOT_A_CALL;
+	this.resultTailCaller = false;
+	this.voidTailCaller = false;
+    }
+
+    /**
+     * the return opcode for a method with the given
+     * descriptor, e.g. IRETURN for ()Z and RETURN for ()V
+     */
+    static int returnOpcode(String desc) {
+	switch (desc.charAt(desc.indexOf(')') + 1)) {
+	case 'V':
+	    return Opcodes.RETURN;
+	case 'J':
+	    return Opcodes.LRETURN;
+	case 'F':
+	    return Opcodes.FRETURN;
+	case 'D':
+	    return Opcodes.DRETURN;
+	case 'L':
+	case '[':
+	    return Opcodes.ARETURN;
+	default:
+	    return Opcodes.IRETURN;
+	}
     }
     
     //@Override
@@ -51,10 +80,9 @@ public class MethodPatternSpotter extends MethodAdapter {
 	    this.numInterfaceMethodCalls++;
 	}
 	
-	// set lastInstrIsCall to true...
-	// then check for RETURN instruction next to see
-	// whether it works or not...
-	this.lastInstructionWasMethodCall = true;
+	// remember which return would make this a tail call,
+	// then check for it as the next instruction
+	this.tailReturn = returnOpcode(desc);
 
 	// check whether the method call is to a 
 	// Java SDK method...
@@ -67,12 +95,14 @@ public class MethodPatternSpotter extends MethodAdapter {
     
     
     /**
-     * NOTE - this way to find tail calls is _imprecise_
-     * since we do not turn off the lastInstructionWasMethodCall
-     * for IInc instructions, Ldc instructions, Switch instrs, etc...
-     * might need to think about fixing this!!! @TODO
+     * a call is a tail call when the next instruction is the
+     * return of the call's own result (or a plain RETURN after
+     * a void call). Labels, frames and line numbers are not
+     * instructions, so they leave the previous call pending;
+     * every other visitXxxInsn clears it.
      */
     // @Override
+    @SuppressWarnings("fallthrough")
     public void visitInsn(int opcode) {
 	// @jsinger - This gets called for all zero-optcode
 	// bytecode instrs.
@@ -84,14 +114,82 @@ public class MethodPatternSpotter extends MethodAdapter {
 	case Opcodes.FRETURN:
 	case Opcodes.DRETURN:
 	case Opcodes.ARETURN:
-	    if (this.lastInstructionWasMethodCall) {
-		this.tailCaller = true;
+	    if (opcode == this.tailReturn) {
+		if (opcode == Opcodes.RETURN) {
+		    this.voidTailCaller = true;
+		} else {
+		    this.resultTailCaller = true;
+		}
 	    }
+	    // fall through: a return is not a call either
 	default:
-	    this.lastInstructionWasMethodCall = false;
+	    this.tailReturn = NOT_A_CALL;
 	    break;
 	}
+	mv.visitInsn(opcode);
+    }
+
+    // @Override
+    public void visitIntInsn(int opcode, int operand) {
+	this.tailReturn = NOT_A_CALL;
+	mv.visitIntInsn(opcode, operand);
+    }
+
+    // @Override
+    public void visitVarInsn(int opcode, int var) {
+	this.tailReturn = NOT_A_CALL;
+	mv.visitVarInsn(opcode, var);
+    }
+
+    // @Override
+    public void visitTypeInsn(int opcode, String type) {
+	this.tailReturn = NOT_A_CALL;
+	mv.visitTypeInsn(opcode, type);
+    }
+
+    // @Override
+    public void visitFieldInsn(int opcode, String owner,
+			       String name, String desc) {
+	this.tailReturn = NOT_A_CALL;
+	mv.visitFieldInsn(opcode, owner, name, desc);
+    }
+
+    // @Override
+    public void visitJumpInsn(int opcode, Label label) {
+	this.tailReturn = NOT_A_CALL;
+	mv.visitJumpInsn(opcode, label);
+    }
+
+    // @Override
+    public void visitLdcInsn(Object cst) {
+	this.tailReturn = NOT_A_CALL;
+	mv.visitLdcInsn(cst);
+    }
+
+    // @Override
+    public void visitIincInsn(int var, int increment) {
+	this.tailReturn = NOT_A_CALL;
+	mv.visitIincInsn(var, increment);
+    }
+
+    // @Override
+    public void visitTableSwitchInsn(int min, int max,
+				     Label dflt, Label[] labels) {
+	this.tailReturn = NOT_A_CALL;
+	mv.visitTableSwitchInsn(min, max, dflt, labels);
+    }
+
+    // @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys,
+				      Label[] labels) {
+	this.tailReturn = NOT_A_CALL;
+	mv.visitLookupSwitchInsn(dflt, keys, labels);
+    }
 
+    // @Override
+    public void visitMultiANewArrayInsn(String desc, int dims) {
+	this.tailReturn = NOT_A_CALL;
+	mv.visitMultiANewArrayInsn(desc, dims);
     }
 	
     
@@ -120,7 +218,23 @@ public class MethodPatternSpotter extends MethodAdapter {
      * Method call followed immediately by return stmt
      */
     public boolean isTailCaller() {
-	return this.tailCaller;
+	return this.resultTailCaller || this.voidTailCaller;
+    }
+
+    /**
+     * does this method return the result of a call
+     * straight away, e.g. return f(x);
+     */
+    public boolean isResultTailCaller() {
+	return this.resultTailCaller;
+    }
+
+    /**
+     * does this method end with a call to a void
+     * method, e.g. f(x); return;
+     */
+    public boolean isVoidTailCaller() {
+	return this.voidTailCaller;
     }
 
 }
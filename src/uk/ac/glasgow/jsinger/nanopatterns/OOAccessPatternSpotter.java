@@ -4,6 +4,7 @@
 
 package uk.ac.glasgow.jsinger.nanopatterns;
 
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.MethodAdapter;
 import org.objectweb.asm.Opcodes;
@@ -21,36 +22,32 @@ import org.objectweb.asm.Opcodes;
 public class OOAccessPatternSpotter extends MethodAdapter{
 
   private boolean createsNewObjects;
-  private boolean getsThisInstanceFields;
-  private boolean setsThisInstanceFields;
-  private boolean getsOtherInstanceFields;
-  private boolean setsOtherInstanceFields;
   private boolean getsStaticFields;
   private boolean setsStaticFields;
   /* @jsinger
    * Now we attempt to distinguish between get/set field
    * operations on "this" object, and on "other" objects.
-   * We monitor instances of "ALOAD_0" which loads the this
-   * ptr on the stack. If this occurs immediately prior to
-   * a getfield, or 2 instrs prior to a setfield, then we
-   * know it is an access through the "this" ptr. Otherwise,
-   * we conservatively assume that it is an "other" ptr access.
-   * (To be any more complex would require simulating the
-   * operand stack, and doing alias analysis.
+   * The operand stack is simulated (see ThisTracker) to
+   * find out whether the object a getfield / setfield
+   * acts on is the "this" ptr. Anything else counts as
+   * an "other" ptr access. The tracker keeps the
+   * instance field results.
    */
-  private int instrsSinceLastALOAD0;
+  private final ThisTracker stack;
   
 
+  /** for instance methods **/
   public OOAccessPatternSpotter(MethodVisitor mv) {
+    this(mv, 0);
+  }
+
+  /** access is the method's access flags, to tell if it is static **/
+  public OOAccessPatternSpotter(MethodVisitor mv, int access) {
     super(mv);
     this.createsNewObjects = false;
-    this.getsThisInstanceFields = false;
-    this.setsThisInstanceFields = false;
-    this.getsOtherInstanceFields = false;
-    this.setsOtherInstanceFields = false;
     this.getsStaticFields = false;
     this.setsStaticFields = false;
-    this.instrsSinceLastALOAD0 = Integer.MAX_VALUE;
+    this.stack = new ThisTracker((access & Opcodes.ACC_STATIC) != 0);
   }
     
   //@Override
@@ -58,29 +55,13 @@ public class OOAccessPatternSpotter extends MethodAdapter{
 			     String owner,
 			     String name,
 			     String desc) {
-    instrsSinceLastALOAD0++;
+    stack.fieldInsn(opcode, desc);
     
-    // check whether this is a get or a set
+    // check whether this is a static get or a set
     // (i.e. read or write)
-    if (opcode == Opcodes.GETFIELD) {
-      if (instrsSinceLastALOAD0 == 1) {
-	this.getsThisInstanceFields = true;
-      }
-      else {
-	this.getsOtherInstanceFields = true;
-      }
-    }
-    else if (opcode == Opcodes.GETSTATIC) {
+    if (opcode == Opcodes.GETSTATIC) {
       this.getsStaticFields = true;
     }
-    else if (opcode == Opcodes.PUTFIELD) {
-      if (instrsSinceLastALOAD0 == 2) {
-	this.setsThisInstanceFields = true;
-      }
-      else {
-	this.setsOtherInstanceFields = true;
-      }
-    }
     else if (opcode == Opcodes.PUTSTATIC) {
       this.setsStaticFields = true;
     }
@@ -89,14 +70,8 @@ public class OOAccessPatternSpotter extends MethodAdapter{
   // @Override
   public void visitVarInsn(int opcode,
 			   int index) {
-    instrsSinceLastALOAD0++;
-
-    // look for ALOAD0  (loads "this" ptr onto stack)
-    if (opcode==Opcodes.ALOAD &&
-	index==0) {
-      
-      instrsSinceLastALOAD0 = 0;
-    }
+    // ALOADs of "this" put it on the stack
+    stack.varInsn(opcode, index);
   }
   
   // @Override
@@ -104,7 +79,56 @@ public class OOAccessPatternSpotter extends MethodAdapter{
     // @jsinger - This gets called for many (but not all)
     // bytecode instrs...
     // See http://asm.ow2.org/doc/tutorial.html for details.
-    instrsSinceLastALOAD0++;
+    stack.insn(opcode);
+  }
+
+  // @Override
+  public void visitIntInsn(int opcode, int operand) {
+    stack.intInsn(opcode);
+  }
+
+  // @Override
+  public void visitMethodInsn(int opcode,
+			      String owner,
+			      String name,
+			      String desc) {
+    stack.methodInsn(opcode, desc);
+  }
+
+  // @Override
+  public void visitJumpInsn(int opcode, Label label) {
+    stack.jumpInsn(opcode, label);
+  }
+
+  // @Override
+  public void visitLabel(Label label) {
+    stack.label(label);
+  }
+
+  // @Override
+  public void visitTableSwitchInsn(int min, int max, Label dflt,
+				   Label[] labels) {
+    stack.switchInsn(dflt, labels);
+  }
+
+  // @Override
+  public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+    stack.switchInsn(dflt, labels);
+  }
+
+  // @Override
+  public void visitIincInsn(int var, int increment) {
+    stack.iincInsn(var);
+  }
+
+  // @Override
+  public void visitLdcInsn(Object cst) {
+    stack.ldcInsn(cst);
+  }
+
+  // @Override
+  public void visitMultiANewArrayInsn(String desc, int dims) {
+    stack.multiANewArrayInsn(dims);
   }
       
       
@@ -112,6 +136,8 @@ public class OOAccessPatternSpotter extends MethodAdapter{
   // @Override
   public void visitTypeInsn(int opcode,
 			    String type) {
+    stack.typeInsn(opcode);
+
     // check whether this is a new object creation
     if (opcode == Opcodes.NEW) {
       this.createsNewObjects = true;
@@ -126,19 +152,19 @@ public class OOAccessPatternSpotter extends MethodAdapter{
   }
 
   public boolean isThisInstanceFieldReader() {
-    return this.getsThisInstanceFields;
+    return stack.readsThisFields();
   }
 
   public boolean isThisInstanceFieldWriter() {
-    return this.setsThisInstanceFields;
+    return stack.writesThisFields();
   }
 
   public boolean isOtherInstanceFieldReader() {
-    return this.getsOtherInstanceFields;
+    return stack.readsOtherFields();
   }
 
   public boolean isOtherInstanceFieldWriter() {
-    return this.setsOtherInstanceFields;
+    return stack.writesOtherFields();
   }
 
   public boolean isStaticFieldReader() {
@@ -0,0 +1,189 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * java.lang.instrument agent that spots the nanopatterns of every
+ * class as it is loaded:
+ *   java -javaagent:np.jar[=options] ...
+ * The transformer never changes the class bytes. It only hands a
+ * copy to a bounded queue, dropping the class if the queue is full,
+ * so class loading never waits on analysis. A single background
+ * thread drains the queue and writes the rows.
+ * Options are separated by commas, e.g. =-out,np.txt,-queue,4096:
+ *   -out FILE   text report file (default nanopatterns.txt)
+ *   -queue N    classes that may wait for analysis (default 1024)
+ * plus any TestPatternSpotter option, such as -binary PREFIX.
+ * When the JVM exits, the agent finishes the queued classes, then
+ * prints how many classes were analysed and dropped, and the mean
+ * and maximum time it added to each class load.
+ */
+public class PatternAgent implements ClassFileTransformer {
+
+	private static final int DEFAULT_QUEUE = 1024;
+
+	private final ArrayBlockingQueue<byte[]> queue;
+	private final AnalysisOptions options;
+
+	private final AtomicLong seen = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	private long analysed;
+	private long failed;
+
+	private volatile boolean stopping;
+
+	PatternAgent(int capacity, AnalysisOptions options) {
+		this.queue = new ArrayBlockingQueue<byte[]>(capacity);
+		this.options = options;
+	}
+
+	public static void premain(String agentArgs, Instrumentation inst) {
+		String out = "nanopatterns.txt";
+		int capacity = DEFAULT_QUEUE;
+		List<String> rest = new ArrayList<String>();
+		String[] args = (agentArgs == null || agentArgs.length() == 0) ? new String[0]
+				: agentArgs.split(",");
+		AnalysisOptions options;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-out") && i + 1 < args.length) {
+					out = args[++i];
+				} else if (args[i].equals("-queue") && i + 1 < args.length) {
+					capacity = Integer.parseInt(args[++i]);
+					if (capacity < 1) {
+						throw new IllegalArgumentException("-queue needs a positive size");
+					}
+				} else {
+					rest.add(args[i]);
+				}
+			}
+			options = AnalysisOptions.parse(rest.toArray(new String[rest.size()]),
+					new ArrayList<String>());
+		} catch (IllegalArgumentException e) {
+			System.err.println("nanopatterns agent disabled, bad options: "
+					+ e.getMessage());
+			return;
+		}
+		try {
+			if (options.binaryPrefix != null || options.columnsPrefix != null) {
+				options.openWriter();
+			} else {
+				options.writer = new TextResultWriter(new FileOutputStream(out),
+						options.patterns);
+			}
+		} catch (IOException e) {
+			System.err.println("nanopatterns agent disabled, cannot open output: "
+					+ e.getMessage());
+			return;
+		}
+		options.messages = System.err;
+
+		final PatternAgent agent = new PatternAgent(capacity, options);
+		final Thread worker = new Thread("nanopatterns agent") {
+			public void run() {
+				agent.drain();
+			}
+		};
+		worker.setDaemon(true);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				agent.stop(worker);
+			}
+		});
+		// exercise the transformer once, so that none of its own
+		// classes are first loaded from inside a class load
+		agent.transform(null, null, null, null, new byte[0]);
+		agent.seen.set(0);
+		agent.totalNanos.set(0);
+		agent.maxNanos.set(0);
+		agent.queue.clear();
+
+		worker.start();
+		inst.addTransformer(agent);
+	}
+
+	/** queues a copy of the class for analysis; never transforms it **/
+	public byte[] transform(ClassLoader loader, String className,
+			Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+			byte[] classfileBuffer) {
+		long start = System.nanoTime();
+		if (classBeingRedefined == null && !stopping) {
+			seen.incrementAndGet();
+			if (queue.remainingCapacity() == 0
+					|| !queue.offer(classfileBuffer.clone())) {
+				dropped.incrementAndGet();
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		totalNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+		return null;
+	}
+
+	/** analyses queued classes until the agent stops **/
+	private void drain() {
+		while (!stopping) {
+			try {
+				byte[] classBytes = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (classBytes != null) {
+					analyse(classBytes);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void analyse(byte[] classBytes) {
+		try {
+			List<PatternList> results = new TestPatternSpotter(
+					TestPatternSpotter.ANALYSE_CLASS_FILE, null, options)
+					.analyseClassBytes(classBytes);
+			for (PatternList resultList : results) {
+				options.writer.write(resultList);
+			}
+			analysed++;
+		} catch (Exception e) {
+			// e.g. class file features newer than the bytecode reader
+			failed++;
+		}
+	}
+
+	/** finishes the queued classes and closes the output **/
+	private void stop(Thread worker) {
+		stopping = true;
+		try {
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		byte[] classBytes;
+		while ((classBytes = queue.poll()) != null) {
+			analyse(classBytes);
+		}
+		options.close();
+		long loads = seen.get();
+		System.err.printf(
+				"nanopatterns agent: %d classes loaded, %d analysed, %d unreadable, %d dropped; "
+						+ "added %.1f us per class load on average, %.1f us at most%n",
+				loads, analysed, failed, dropped.get(),
+				loads == 0 ? 0.0 : totalNanos.get() / 1000.0 / loads,
+				maxNanos.get() / 1000.0);
+	}
+
+}
@@ -0,0 +1,35 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import org.objectweb.asm.MethodVisitor;
+
+/**
+ * A pluggable nanopattern detector.
+ * Detectors are found with java.util.ServiceLoader: list the
+ * implementation in
+ * META-INF/services/uk.ac.glasgow.jsinger.nanopatterns.PatternDetector
+ * on the class path, and its patterns are reported after the
+ * built-in columns.
+ * A PatternDispatcher only hands a detector the instructions whose
+ * opcodes it subscribes to, and each analysing thread gets its own
+ * detector instances, so detectors need not be thread safe.
+ * Implementations usually extend org.objectweb.asm.commons.EmptyVisitor
+ * and override just the visit methods for their opcodes.
+ */
+public interface PatternDetector extends MethodVisitor {
+
+	/** pseudo-opcode subscribing to visitLabel **/
+	int LABEL = 256;
+
+	/** opcodes to be routed to this detector, and/or LABEL **/
+	int[] getOpcodes();
+
+	/** report column names of the patterns spotted, in order **/
+	String[] getPatternNames();
+
+	/** forgets the previous method before a new one is visited **/
+	void startMethod(String className, String methodName, String methodDesc);
+
+	/** does the method exhibit pattern n of getPatternNames()? **/
+	boolean exhibits(int pattern);
+
+}
@@ -0,0 +1,304 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.EmptyVisitor;
+
+/**
+ * method scanner (asm-speak adapter) that feeds each instruction to
+ * the PatternDetectors subscribed to its opcode.
+ * The routing table is built once per dispatcher, so an instruction
+ * costs one array lookup plus a call per interested detector, and
+ * detectors that subscribe to nothing in a method never run.
+ * Detector patterns take the mask bits after the built-in patterns,
+ * in the order the detectors were found; detectors that would not
+ * fit in the 64-bit mask are left out.
+ */
+public class PatternDispatcher extends MethodAdapter {
+
+	private static final int ROUTES = PatternDetector.LABEL + 1;
+
+	private static final int MAX_PATTERNS = 64 - PatternList.NUM_PATTERNS;
+
+	private static final PatternDetector[] NONE = new PatternDetector[0];
+
+	/** names of the installed detectors' patterns, in column order **/
+	private static final String[] PATTERN_NAMES = patternNames(loadDetectors(true));
+
+	/** each thread's dispatcher over its own detector instances **/
+	private static final ThreadLocal<PatternDispatcher> DISPATCHERS = new ThreadLocal<PatternDispatcher>();
+
+	/** the patterns wanted, as a mask **/
+	private final long patterns;
+
+	/** the detectors with a wanted pattern **/
+	private final PatternDetector[] detectors;
+
+	/** first mask bit of each detector's patterns **/
+	private final int[] firstBits;
+
+	/** subscribers to each opcode, and to LABEL **/
+	private final PatternDetector[][] routes = new PatternDetector[ROUTES][];
+
+	public PatternDispatcher(List<PatternDetector> detectors) {
+		this(detectors, -1L);
+	}
+
+	/**
+	 * dispatches only to the detectors with a pattern in the mask;
+	 * the others are never fed and report nothing
+	 */
+	public PatternDispatcher(List<PatternDetector> detectors, long patterns) {
+		super(new EmptyVisitor());
+		this.patterns = patterns;
+		List<PatternDetector> wanted = new ArrayList<PatternDetector>();
+		List<Integer> bits = new ArrayList<Integer>();
+		int bit = PatternList.NUM_PATTERNS;
+		for (PatternDetector detector : detectors) {
+			int count = detector.getPatternNames().length;
+			long mask = (count == 0) ? 0 : (-1L >>> (64 - count)) << bit;
+			if ((patterns & mask) != 0) {
+				wanted.add(detector);
+				bits.add(Integer.valueOf(bit));
+			}
+			bit += count;
+		}
+		this.detectors = wanted.toArray(NONE);
+		this.firstBits = new int[bits.size()];
+		for (int i = 0; i < firstBits.length; i++) {
+			firstBits[i] = bits.get(i).intValue();
+		}
+
+		List<List<PatternDetector>> subscribers = new ArrayList<List<PatternDetector>>();
+		for (int opcode = 0; opcode < ROUTES; opcode++) {
+			subscribers.add(new ArrayList<PatternDetector>());
+		}
+		for (PatternDetector detector : this.detectors) {
+			for (int opcode : detector.getOpcodes()) {
+				if (opcode < 0 || opcode >= ROUTES) {
+					continue;
+				}
+				List<PatternDetector> route = subscribers.get(opcode);
+				if (!route.contains(detector)) {
+					route.add(detector);
+				}
+			}
+		}
+		for (int opcode = 0; opcode < ROUTES; opcode++) {
+			List<PatternDetector> route = subscribers.get(opcode);
+			routes[opcode] = route.isEmpty() ? NONE : route.toArray(NONE);
+		}
+	}
+
+	/**
+	 * the calling thread's dispatcher over the installed detectors,
+	 * or null when none are installed
+	 */
+	public static PatternDispatcher forCurrentThread() {
+		return forCurrentThread(-1L);
+	}
+
+	/**
+	 * as forCurrentThread, for just the patterns in the mask, or
+	 * null when no installed detector spots any of them
+	 */
+	public static PatternDispatcher forCurrentThread(long patterns) {
+		if (PATTERN_NAMES.length == 0
+				|| (patterns >>> PatternList.NUM_PATTERNS) == 0) {
+			return null;
+		}
+		patterns &= PatternList.allColumns();
+		PatternDispatcher dispatcher = DISPATCHERS.get();
+		if (dispatcher == null || dispatcher.patterns != patterns) {
+			dispatcher = new PatternDispatcher(loadDetectors(false), patterns);
+			DISPATCHERS.set(dispatcher);
+		}
+		return (dispatcher.detectors.length == 0) ? null : dispatcher;
+	}
+
+	/** column names of the installed detectors' patterns **/
+	public static String[] getPatternNames() {
+		return PATTERN_NAMES.clone();
+	}
+
+	static int getPatternCount() {
+		return PATTERN_NAMES.length;
+	}
+
+	/**
+	 * fresh instances of the detectors on the class path, leaving
+	 * out any that cannot be loaded or do not fit in the mask
+	 */
+	private static List<PatternDetector> loadDetectors(boolean warn) {
+		List<PatternDetector> detectors = new ArrayList<PatternDetector>();
+		int patterns = 0;
+		Iterator<PatternDetector> found = ServiceLoader.load(PatternDetector.class).iterator();
+		while (true) {
+			PatternDetector detector;
+			try {
+				if (!found.hasNext()) {
+					break;
+				}
+				detector = found.next();
+			} catch (ServiceConfigurationError e) {
+				if (warn) {
+					System.err.println("Failed to load pattern detector: " + e.getMessage());
+				}
+				continue;
+			}
+			int count = detector.getPatternNames().length;
+			if (patterns + count > MAX_PATTERNS) {
+				if (warn) {
+					System.err.println("Too many patterns, leaving out detector: "
+							+ detector.getClass().getName());
+				}
+				continue;
+			}
+			patterns += count;
+			detectors.add(detector);
+		}
+		return detectors;
+	}
+
+	private static String[] patternNames(List<PatternDetector> detectors) {
+		List<String> names = new ArrayList<String>();
+		for (PatternDetector detector : detectors) {
+			for (String name : detector.getPatternNames()) {
+				names.add(name);
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	/** starts every detector on a new method **/
+	public void startMethod(String className, String methodName, String methodDesc) {
+		for (PatternDetector detector : detectors) {
+			detector.startMethod(className, methodName, methodDesc);
+		}
+	}
+
+	/** copies the detectors' patterns into the given result row **/
+	public void report(PatternList resultList) {
+		for (int i = 0; i < detectors.length; i++) {
+			int count = detectors[i].getPatternNames().length;
+			for (int pattern = 0; pattern < count; pattern++) {
+				resultList.set(firstBits[i] + pattern, detectors[i].exhibits(pattern));
+			}
+		}
+	}
+
+	// @Override
+	public void visitInsn(int opcode) {
+		PatternDetector[] route = routes[opcode];
+		for (int i = 0; i < route.length; i++) {
+			route[i].visitInsn(opcode);
+		}
+	}
+
+	// @Override
+	public void visitIntInsn(int opcode, int operand) {
+		PatternDetector[] route = routes[opcode];
+		for (int i = 0; i < route.length; i++) {
+			route[i].visitIntInsn(opcode, operand);
+		}
+	}
+
+	// @Override
+	public void visitVarInsn(int opcode, int var) {
+		PatternDetector[] route = routes[opcode];
+		for (int i = 0; i < route.length; i++) {
+			route[i].visitVarInsn(opcode, var);
+		}
+	}
+
+	// @Override
+	public void visitTypeInsn(int opcode, String type) {
+		PatternDetector[] route = routes[opcode];
+		for (int i = 0; i < route.length; i++) {
+			route[i].visitTypeInsn(opcode, type);
+		}
+	}
+
+	// @Override
+	public void visitFieldInsn(int opcode, String owner, String name,
+			String desc) {
+		PatternDetector[] route = routes[opcode];
+		for (int i = 0; i < route.length; i++) {
+			route[i].visitFieldInsn(opcode, owner, name, desc);
+		}
+	}
+
+	// @Override
+	public void visitMethodInsn(int opcode, String owner, String name,
+			String desc) {
+		PatternDetector[] route = routes[opcode];
+		for (int i = 0; i < route.length; i++) {
+			route[i].visitMethodInsn(opcode, owner, name, desc);
+		}
+	}
+
+	// @Override
+	public void visitJumpInsn(int opcode, Label label) {
+		PatternDetector[] route = routes[opcode];
+		for (int i = 0; i < route.length; i++) {
+			route[i].visitJumpInsn(opcode, label);
+		}
+	}
+
+	// @Override
+	public void visitLabel(Label label) {
+		PatternDetector[] route = routes[PatternDetector.LABEL];
+		for (int i = 0; i < route.length; i++) {
+			route[i].visitLabel(label);
+		}
+	}
+
+	// @Override
+	public void visitLdcInsn(Object cst) {
+		PatternDetector[] route = routes[Opcodes.LDC];
+		for (int i = 0; i < route.length; i++) {
+			route[i].visitLdcInsn(cst);
+		}
+	}
+
+	// @Override
+	public void visitIincInsn(int var, int increment) {
+		PatternDetector[] route = routes[Opcodes.IINC];
+		for (int i = 0; i < route.length; i++) {
+			route[i].visitIincInsn(var, increment);
+		}
+	}
+
+	// @Override
+	public void visitTableSwitchInsn(int min, int max, Label dflt,
+			Label[] labels) {
+		PatternDetector[] route = routes[Opcodes.TABLESWITCH];
+		for (int i = 0; i < route.length; i++) {
+			route[i].visitTableSwitchInsn(min, max, dflt, labels);
+		}
+	}
+
+	// @Override
+	public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+		PatternDetector[] route = routes[Opcodes.LOOKUPSWITCH];
+		for (int i = 0; i < route.length; i++) {
+			route[i].visitLookupSwitchInsn(dflt, keys, labels);
+		}
+	}
+
+	// @Override
+	public void visitMultiANewArrayInsn(String desc, int dims) {
+		PatternDetector[] route = routes[Opcodes.MULTIANEWARRAY];
+		for (int i = 0; i < route.length; i++) {
+			route[i].visitMultiANewArrayInsn(desc, dims);
+		}
+	}
+
+}
@@ -0,0 +1,576 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Inverted index from each nanopattern to the methods exhibiting
+ * it, over the rows written by BinaryResultWriter: one bitmap per
+ * pattern, where bit n stands for row n of PREFIX.rows.
+ * Boolean pattern queries are answered with whole-word bitmap
+ * AND / OR / ANDNOT instead of reading any rows.
+ *
+ * prefix.index (big-endian):
+ *   header  int magic "NPIX", int version, int number of patterns,
+ *           int number of methods, long mask of the patterns computed,
+ *           then each pattern's column name (as by
+ *           DataOutput.writeUTF), in bit order
+ *   bitmaps per pattern, in bit order: int word count, then that
+ *           many compressed words
+ * Bitmaps are compressed as runs of all-0 or all-1 words: a marker
+ * word holds the run bit (bit 63), the run length in words (bits
+ * 32-62) and the number of literal words that follow it (bits
+ * 0-31).
+ *
+ * usage:
+ *   PatternIndex build PREFIX [report.txt...]
+ *     indexes PREFIX.rows; with text reports, first converts them
+ *     to PREFIX.rows and PREFIX.strings (only the columns in every
+ *     report's header line count as computed)
+ *   PatternIndex query PREFIX [-count] "leaf AND arrReader AND NOT looper"
+ *     prints the matching methods (or just how many there are).
+ *     Patterns are named by the columns of the rows indexed, which
+ *     need not match this JVM's detectors; AND, OR, NOT and
+ *     parentheses (or & | !) combine them, NOT binding tightest.
+ *     Patterns that were not computed cannot be queried.
+ */
+public class PatternIndex {
+
+	public static final int MAGIC = 0x4E504958;
+	public static final int VERSION = 3;
+
+	private static final long RUN_BIT = 1L << 63;
+	private static final int MAX_RUN = Integer.MAX_VALUE;
+	private static final int MAX_LITERALS = Integer.MAX_VALUE;
+
+	/** bytes before the column names, in both rows and index **/
+	private static final int HEADER_BYTES = 24;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String prefix;
+	private final int numMethods;
+
+	/** the patterns computed, as a mask **/
+	private final long computed;
+
+	/** column name of each pattern, by bit position **/
+	private final String[] names;
+
+	/** uncompressed bitmap per pattern, by bit position **/
+	private final long[][] bitmaps;
+
+	private PatternIndex(String prefix, int numMethods, long computed,
+			String[] names, long[][] bitmaps) {
+		this.prefix = prefix;
+		this.numMethods = numMethods;
+		this.computed = computed;
+		this.names = names;
+		this.bitmaps = bitmaps;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length >= 2 && args[0].equals("build")) {
+			if (args.length > 2) {
+				convertReports(args[1], args, 2);
+			}
+			build(args[1]);
+			return;
+		}
+		if (args.length >= 3 && args[0].equals("query")) {
+			boolean countOnly = args[2].equals("-count");
+			StringBuilder expression = new StringBuilder();
+			for (int i = countOnly ? 3 : 2; i < args.length; i++) {
+				expression.append(args[i]).append(' ');
+			}
+			if (expression.length() == 0) {
+				usage("missing query expression");
+			}
+			PatternIndex index = open(args[1]);
+			long start = System.nanoTime();
+			long[] matches = null;
+			try {
+				matches = index.evaluate(expression.toString());
+			} catch (IllegalArgumentException e) {
+				usage(e.getMessage());
+			}
+			long nanos = System.nanoTime() - start;
+			if (!countOnly) {
+				index.printMethods(matches);
+			}
+			System.err.printf("%d of %d methods match (%.2f ms)%n",
+					count(matches), index.numMethods, nanos / 1e6);
+			return;
+		}
+		usage(null);
+	}
+
+	private static void usage(String problem) {
+		if (problem != null) {
+			System.err.println(problem);
+		}
+		System.err.println("usage: java PatternIndex build PREFIX [report.txt...]\n"
+				+ "   (or) java PatternIndex query PREFIX [-count] EXPRESSION");
+		System.exit(-1);
+	}
+
+	/** BUILDING **/
+
+	/** writes PREFIX.index for the rows in PREFIX.rows **/
+	public static void build(String prefix) throws IOException {
+		MappedByteBuffer rows = map(prefix + ".rows");
+		if (rows.getInt(0) != BinaryResultWriter.ROWS_MAGIC
+				|| rows.getInt(4) != BinaryResultWriter.VERSION) {
+			throw new IOException("not a result rows file: " + prefix + ".rows");
+		}
+		int recordBytes = rows.getInt(8);
+		// the writer's patterns, which need not be this JVM's
+		int numPatterns = rows.getInt(12);
+		long computed = rows.getLong(16);
+		rows.position(HEADER_BYTES);
+		String[] names = readNames(rows, numPatterns);
+		int first = rows.position();
+		int numMethods = (rows.capacity() - first) / recordBytes;
+		int words = (numMethods + 63) >>> 6;
+		long[][] bitmaps = new long[numPatterns][words];
+		// the mask is the last field of each record
+		int position = first + recordBytes - 8;
+		for (int method = 0; method < numMethods; method++, position += recordBytes) {
+			long mask = rows.getLong(position);
+			while (mask != 0) {
+				int pattern = Long.numberOfTrailingZeros(mask);
+				if (pattern < numPatterns) {
+					bitmaps[pattern][method >>> 6] |= 1L << method;
+				}
+				mask &= mask - 1;
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(prefix + ".index"), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numPatterns);
+			out.writeInt(numMethods);
+			out.writeLong(computed);
+			for (String name : names) {
+				out.writeUTF(name);
+			}
+			for (long[] bitmap : bitmaps) {
+				long[] compressed = compress(bitmap);
+				out.writeInt(compressed.length);
+				for (long word : compressed) {
+					out.writeLong(word);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * reads count names written by DataOutput.writeUTF, starting at
+	 * the buffer's position and leaving it just after them
+	 */
+	private static String[] readNames(ByteBuffer buffer, int count) {
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			byte[] utf8 = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(utf8);
+			names[i] = new String(utf8, UTF8);
+		}
+		return names;
+	}
+
+	/** rewrites text reports as PREFIX.rows and PREFIX.strings **/
+	private static void convertReports(String prefix, String[] reports, int first)
+			throws IOException {
+		// only the patterns in every report count as computed
+		long computed = PatternList.allColumns();
+		for (int i = first; i < reports.length; i++) {
+			BufferedReader in = new BufferedReader(new FileReader(reports[i]));
+			try {
+				int[] columns = parseHeader(in.readLine());
+				if (columns != null) {
+					long mask = 0;
+					for (int pattern : columns) {
+						mask |= 1L << pattern;
+					}
+					computed &= mask;
+				}
+			} finally {
+				in.close();
+			}
+		}
+		BinaryResultWriter writer = new BinaryResultWriter(prefix, computed);
+		int[] allColumns = new int[PatternList.getColumnCount()];
+		for (int pattern = 0; pattern < allColumns.length; pattern++) {
+			allColumns[pattern] = pattern;
+		}
+		try {
+			for (int i = first; i < reports.length; i++) {
+				BufferedReader in = new BufferedReader(new FileReader(reports[i]));
+				try {
+					int[] columns = allColumns;
+					String line;
+					while ((line = in.readLine()) != null) {
+						int[] header = parseHeader(line);
+						if (header != null) {
+							columns = header;
+							continue;
+						}
+						PatternList resultList = parseRow(line, columns);
+						if (resultList != null) {
+							writer.write(resultList);
+						}
+					}
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * the patterns of the columns named on a report header line, in
+	 * order, or null if the line is not a header
+	 */
+	private static int[] parseHeader(String line) throws IOException {
+		if (line == null || !line.startsWith(PatternList.getHeader(0))) {
+			return null;
+		}
+		String[] fields = line.split(" ");
+		int[] columns = new int[fields.length - 4];
+		for (int i = 0; i < columns.length; i++) {
+			try {
+				columns[i] = Long.numberOfTrailingZeros(PatternList
+						.parseColumns(fields[4 + i]));
+			} catch (IllegalArgumentException e) {
+				throw new IOException("unknown report column " + fields[4 + i]);
+			}
+		}
+		return columns;
+	}
+
+	/**
+	 * the row on a report line with the given columns, or null for
+	 * messages
+	 */
+	private static PatternList parseRow(String line, int[] columns) {
+		String[] fields = line.split(" ");
+		if (fields.length != 4 + columns.length) {
+			return null;
+		}
+		PatternList resultList = new PatternList();
+		resultList.className = fields[0];
+		resultList.methodName = fields[1];
+		resultList.methodDesc = fields[2];
+		try {
+			resultList.numInstrs = Integer.parseInt(fields[3]);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		for (int i = 0; i < columns.length; i++) {
+			String flag = fields[4 + i];
+			if (!flag.equals("0") && !flag.equals("1")) {
+				return null;
+			}
+			resultList.set(columns[i], flag.equals("1"));
+		}
+		return resultList;
+	}
+
+	static long[] compress(long[] bitmap) {
+		long[] out = new long[bitmap.length + 1];
+		int count = 0;
+		int i = 0;
+		while (i < bitmap.length) {
+			long fill = bitmap[i];
+			long runBit = 0;
+			int run = 0;
+			if (fill == 0 || fill == -1L) {
+				runBit = (fill == 0) ? 0 : RUN_BIT;
+				while (i < bitmap.length && bitmap[i] == fill && run < MAX_RUN) {
+					run++;
+					i++;
+				}
+			}
+			int literalsStart = i;
+			while (i < bitmap.length && bitmap[i] != 0 && bitmap[i] != -1L
+					&& i - literalsStart < MAX_LITERALS) {
+				i++;
+			}
+			int literals = i - literalsStart;
+			if (count + 1 + literals > out.length) {
+				long[] bigger = new long[Math.max(out.length * 2, count + 1 + literals)];
+				System.arraycopy(out, 0, bigger, 0, count);
+				out = bigger;
+			}
+			out[count++] = runBit | ((long) run << 32) | literals;
+			System.arraycopy(bitmap, literalsStart, out, count, literals);
+			count += literals;
+		}
+		long[] result = new long[count];
+		System.arraycopy(out, 0, result, 0, count);
+		return result;
+	}
+
+	static long[] decompress(LongBuffer in, int length, int words) {
+		long[] bitmap = new long[words];
+		int word = 0;
+		int end = in.position() + length;
+		while (in.position() < end) {
+			long marker = in.get();
+			int run = (int) ((marker >>> 32) & 0x7FFFFFFF);
+			if ((marker & RUN_BIT) != 0) {
+				Arrays.fill(bitmap, word, word + run, -1L);
+			}
+			word += run;
+			int literals = (int) marker;
+			in.get(bitmap, word, literals);
+			word += literals;
+		}
+		return bitmap;
+	}
+
+	/** QUERYING **/
+
+	/** loads PREFIX.index **/
+	public static PatternIndex open(String prefix) throws IOException {
+		MappedByteBuffer index = map(prefix + ".index");
+		if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+			throw new IOException("not a pattern index: " + prefix + ".index");
+		}
+		int numPatterns = index.getInt(8);
+		int numMethods = index.getInt(12);
+		long computed = index.getLong(16);
+		int words = (numMethods + 63) >>> 6;
+		index.position(HEADER_BYTES);
+		String[] names = readNames(index, numPatterns);
+		long[][] bitmaps = new long[numPatterns][];
+		int position = index.position();
+		for (int pattern = 0; pattern < numPatterns; pattern++) {
+			int length = index.getInt(position);
+			position += 4;
+			index.position(position);
+			bitmaps[pattern] = decompress(index.slice().asLongBuffer(), length,
+					words);
+			position += length * 8;
+		}
+		return new PatternIndex(prefix, numMethods, computed, names, bitmaps);
+	}
+
+	public int getNumMethods() {
+		return numMethods;
+	}
+
+	public boolean isComputed(int pattern) {
+		return (computed & (1L << pattern)) != 0;
+	}
+
+	/** the bitmap of methods exhibiting a pattern **/
+	public long[] get(int pattern) {
+		return bitmaps[pattern].clone();
+	}
+
+	/** the bitmap of methods matching the boolean pattern expression **/
+	public long[] evaluate(String expression) {
+		return new Query(expression).parse();
+	}
+
+	public static int count(long[] bitmap) {
+		int count = 0;
+		for (long word : bitmap) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	/** prints class, method and descriptor of each method in the bitmap **/
+	private void printMethods(long[] bitmap) throws IOException {
+		MappedByteBuffer rows = map(prefix + ".rows");
+		int recordBytes = rows.getInt(8);
+		rows.position(HEADER_BYTES);
+		readNames(rows, rows.getInt(12));
+		int first = rows.position();
+		Strings strings = new Strings(map(prefix + ".strings"));
+		StringBuilder out = new StringBuilder();
+		for (int w = 0; w < bitmap.length; w++) {
+			long word = bitmap[w];
+			while (word != 0) {
+				int method = (w << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+				int record = first + method * recordBytes;
+				out.append(strings.get(rows.getInt(record))).append(' ')
+						.append(strings.get(rows.getInt(record + 4))).append(' ')
+						.append(strings.get(rows.getInt(record + 8))).append('\n');
+				if (out.length() > 1 << 16) {
+					System.out.print(out);
+					out.setLength(0);
+				}
+			}
+		}
+		System.out.print(out);
+		System.out.flush();
+	}
+
+	private static MappedByteBuffer map(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			MappedByteBuffer map = file.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, file.length());
+			map.order(ByteOrder.BIG_ENDIAN);
+			return map;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * string table of a BinaryResultWriter, with entries decoded
+	 * only when they are looked up
+	 */
+	private static class Strings {
+
+		private final MappedByteBuffer table;
+		private int[] offsets = new int[1024];
+		private int count;
+		private int scanned = 8;
+
+		Strings(MappedByteBuffer table) {
+			this.table = table;
+		}
+
+		String get(int id) {
+			while (count <= id && scanned < table.capacity()) {
+				if (count == offsets.length) {
+					int[] bigger = new int[offsets.length * 2];
+					System.arraycopy(offsets, 0, bigger, 0, count);
+					offsets = bigger;
+				}
+				offsets[count++] = scanned;
+				scanned += 4 + table.getInt(scanned);
+			}
+			int offset = offsets[id];
+			byte[] utf8 = new byte[table.getInt(offset)];
+			table.position(offset + 4);
+			table.get(utf8);
+			return new String(utf8, UTF8);
+		}
+	}
+
+	/**
+	 * recursive descent over the expression, evaluating as it goes:
+	 *   or   := and (("OR" | "|") and)*
+	 *   and  := not (("AND" | "&") not)*
+	 *   not  := ("NOT" | "!") not | "(" or ")" | pattern
+	 * "a AND NOT b" is evaluated as a single ANDNOT.
+	 */
+	private class Query {
+
+		private final String[] tokens;
+		private int next;
+
+		Query(String expression) {
+			this.tokens = expression.replace("(", " ( ").replace(")", " ) ")
+					.replace("&", " & ").replace("|", " | ").replace("!", " ! ")
+					.trim().split("\\s+");
+		}
+
+		long[] parse() {
+			long[] result = or();
+			if (next < tokens.length) {
+				throw new IllegalArgumentException("unexpected " + tokens[next]);
+			}
+			return result;
+		}
+
+		private long[] or() {
+			long[] result = and();
+			while (accept("OR") || accept("|")) {
+				long[] other = and();
+				for (int i = 0; i < result.length; i++) {
+					result[i] |= other[i];
+				}
+			}
+			return result;
+		}
+
+		private long[] and() {
+			long[] result = not();
+			while (accept("AND") || accept("&")) {
+				if (accept("NOT") || accept("!")) {
+					long[] other = not();
+					for (int i = 0; i < result.length; i++) {
+						result[i] &= ~other[i];
+					}
+				} else {
+					long[] other = not();
+					for (int i = 0; i < result.length; i++) {
+						result[i] &= other[i];
+					}
+				}
+			}
+			return result;
+		}
+
+		private long[] not() {
+			if (accept("NOT") || accept("!")) {
+				long[] result = not();
+				for (int i = 0; i < result.length; i++) {
+					result[i] = ~result[i];
+				}
+				// no methods past the last one
+				if ((numMethods & 63) != 0) {
+					result[result.length - 1] &= (1L << numMethods) - 1;
+				}
+				return result;
+			}
+			if (accept("(")) {
+				long[] result = or();
+				if (!accept(")")) {
+					throw new IllegalArgumentException("missing )");
+				}
+				return result;
+			}
+			if (next == tokens.length) {
+				throw new IllegalArgumentException("expression ends too soon");
+			}
+			String name = tokens[next++];
+			for (int pattern = 0; pattern < names.length; pattern++) {
+				if (names[pattern].equalsIgnoreCase(name)) {
+					if (!isComputed(pattern)) {
+						throw new IllegalArgumentException("pattern " + name
+								+ " was not computed for this index");
+					}
+					return get(pattern);
+				}
+			}
+			throw new IllegalArgumentException("unknown pattern " + name);
+		}
+
+		private boolean accept(String token) {
+			if (next < tokens.length && tokens[next].equalsIgnoreCase(token)) {
+				next++;
+				return true;
+			}
+			return false;
+		}
+	}
+
+}
@@ -1,76 +1,263 @@
 package uk.ac.glasgow.jsinger.nanopatterns;
 
+/**
+ * The nanopatterns exhibited by one method.
+ * Patterns are packed into a single long, one bit per pattern.
+ * Bit positions are stable: they are the report column order,
+ * and binary outputs and caches depend on them, so new patterns
+ * must only ever be appended.
+ */
 public class PatternList {
 
-	public boolean noParams;
-	public boolean noReturn;
-	public boolean isRecursive;
-	public boolean isSameNameCaller;
-	public boolean isLeaf;
-	public boolean isObjectCreator;
-	public boolean isThisInstanceFieldReader;
-	public boolean isThisInstanceFieldWriter;
-	public boolean isOtherInstanceFieldReader;
-	public boolean isOtherInstanceFieldWriter;
-	public boolean isStaticFieldReader;
-	public boolean isStaticFieldWriter;
-	public boolean isTypeManipulator;
-	public boolean isStraightLineCode;
-	public boolean isLoopingCode;
-	public boolean isSwitcher;
-	public boolean throwsExceptions;
-	public boolean isLocalVarReader;
-	public boolean isLocalVarWriter;
-	public boolean isArrayCreator;
-	public boolean isArrayReader;
-	public boolean isArrayWriter;
-	public boolean isPolymorphic;
-	public boolean isSingleReturner;
-	public boolean isMultipleReturner;
-	public boolean isClient;
-	public boolean isJdkClient;
-	public boolean isTailCaller;
-	
-	public void printResultsAsBooleans() {
-		printBooleanValue(noParams);
-		printBooleanValue(noReturn);
-		printBooleanValue(isRecursive);
-		printBooleanValue(isSameNameCaller);
-		printBooleanValue(isLeaf);
-		printBooleanValue(isObjectCreator);
-		printBooleanValue(isThisInstanceFieldReader);
-		printBooleanValue(isThisInstanceFieldWriter);
-		printBooleanValue(isOtherInstanceFieldReader);
-		printBooleanValue(isOtherInstanceFieldWriter);
-		printBooleanValue(isStaticFieldReader);
-		printBooleanValue(isStaticFieldWriter);
-		printBooleanValue(isTypeManipulator);
-		printBooleanValue(isStraightLineCode);
-		printBooleanValue(isLoopingCode);
-		printBooleanValue(isSwitcher);
-		printBooleanValue(throwsExceptions);
-		printBooleanValue(isLocalVarReader);
-		printBooleanValue(isLocalVarWriter);
-		printBooleanValue(isArrayCreator);
-		printBooleanValue(isArrayReader);
-		printBooleanValue(isArrayWriter);
-		printBooleanValue(isPolymorphic);
-		printBooleanValue(isSingleReturner);
-		printBooleanValue(isMultipleReturner);
-		printBooleanValue(isClient);
-		printBooleanValue(isJdkClient);
-		printBooleanValue(isTailCaller);
-	}
-	
+	/** bit positions of the patterns, in report column order **/
+	public static final int NO_PARAMS = 0;
+	public static final int NO_RETURN = 1;
+	public static final int RECURSIVE = 2;
+	public static final int SAME_NAME_CALLER = 3;
+	public static final int LEAF = 4;
+	public static final int OBJECT_CREATOR = 5;
+	public static final int THIS_INSTANCE_FIELD_READER = 6;
+	public static final int THIS_INSTANCE_FIELD_WRITER = 7;
+	public static final int OTHER_INSTANCE_FIELD_READER = 8;
+	public static final int OTHER_INSTANCE_FIELD_WRITER = 9;
+	public static final int STATIC_FIELD_READER = 10;
+	public static final int STATIC_FIELD_WRITER = 11;
+	public static final int TYPE_MANIPULATOR = 12;
+	public static final int STRAIGHT_LINE_CODE = 13;
+	public static final int LOOPING_CODE = 14;
+	public static final int SWITCHER = 15;
+	public static final int THROWS_EXCEPTIONS = 16;
+	public static final int LOCAL_VAR_READER = 17;
+	public static final int LOCAL_VAR_WRITER = 18;
+	public static final int ARRAY_CREATOR = 19;
+	public static final int ARRAY_READER = 20;
+	public static final int ARRAY_WRITER = 21;
+	public static final int POLYMORPHIC = 22;
+	public static final int SINGLE_RETURNER = 23;
+	public static final int MULTIPLE_RETURNER = 24;
+	public static final int CLIENT = 25;
+	public static final int JDK_CLIENT = 26;
+	public static final int TAIL_CALLER = 27;
+
+	public static final int NUM_PATTERNS = 28;
+
+	/** report column names, indexed by bit position **/
+	public static final String[] COLUMN_NAMES = { "noparams", "void",
+			"recursive", "samename", "leaf", "objCreator",
+			"thisInstanceFieldReader", "thisInstanceFieldWriter",
+			"otherInstanceFieldReader", "otherInstanceFieldWriter",
+			"staticFieldReader", "staticFieldWriter", "typeManipulator",
+			"straightLine", "looper", "switcher", "exceptions", "localReader",
+			"localWriter", "arrCreator", "arrReader", "arrWriter",
+			"polymorphic", "singleReturner", "multipleReturner", "client",
+			"jdkClient", "tailCaller" };
+
+	/** built-in patterns, then those of any installed PatternDetectors **/
+	public static int getColumnCount() {
+		return NUM_PATTERNS + PatternDispatcher.getPatternCount();
+	}
+
+	public static String getColumnName(int pattern) {
+		if (pattern < NUM_PATTERNS) {
+			return COLUMN_NAMES[pattern];
+		}
+		return PatternDispatcher.getPatternNames()[pattern - NUM_PATTERNS];
+	}
+
+	/** the method these patterns were computed for **/
+	public String className;
+	public String methodName;
+	public String methodDesc;
+	public int numInstrs;
+
 	/**
-	 * trivial support for MP-tool style reporting of exhibited nanopatterns
+	 * what the polymorphic pattern was computed from, recorded only
+	 * for rows that are cached; otherwise null
 	 */
-	public static void printBooleanValue(boolean value) {
+	public CallSummary calls;
+
+	private long mask;
+
+	/** mask with the bit of every column set **/
+	public static long allColumns() {
+		int count = getColumnCount();
+		return (count == 64) ? -1L : (1L << count) - 1;
+	}
+
+	/**
+	 * the mask of a comma separated list of column names, e.g.
+	 * "looper,polymorphic"
+	 */
+	public static long parseColumns(String names) {
+		long columns = 0;
+		for (String name : names.split(",")) {
+			int pattern = 0;
+			while (pattern < getColumnCount()
+					&& !getColumnName(pattern).equalsIgnoreCase(name.trim())) {
+				pattern++;
+			}
+			if (pattern == getColumnCount()) {
+				throw new IllegalArgumentException("unknown pattern: " + name);
+			}
+			columns |= 1L << pattern;
+		}
+		return columns;
+	}
+
+	/** header line for the text report **/
+	public static String getHeader() {
+		return getHeader(allColumns());
+	}
+
+	/** header line for a report of just the given columns **/
+	public static String getHeader(long columns) {
+		StringBuilder header = new StringBuilder("class method typesig numInstrs");
+		for (int pattern = 0; pattern < getColumnCount(); pattern++) {
+			if ((columns & (1L << pattern)) != 0) {
+				header.append(' ').append(getColumnName(pattern));
+			}
+		}
+		return header.toString();
+	}
+
+	/** the packed patterns, bit n set for pattern n **/
+	public long getMask() {
+		return mask;
+	}
+
+	public void setMask(long mask) {
+		this.mask = mask;
+	}
+
+	public boolean get(int pattern) {
+		return (mask & (1L << pattern)) != 0;
+	}
+
+	public void set(int pattern, boolean value) {
 		if (value) {
-			System.out.print(" 1");
+			mask |= 1L << pattern;
 		} else {
-			System.out.print(" 0");
+			mask &= ~(1L << pattern);
 		}
 	}
-	
+
+	public boolean noParams() {
+		return get(NO_PARAMS);
+	}
+
+	public boolean noReturn() {
+		return get(NO_RETURN);
+	}
+
+	public boolean isRecursive() {
+		return get(RECURSIVE);
+	}
+
+	public boolean isSameNameCaller() {
+		return get(SAME_NAME_CALLER);
+	}
+
+	public boolean isLeaf() {
+		return get(LEAF);
+	}
+
+	public boolean isObjectCreator() {
+		return get(OBJECT_CREATOR);
+	}
+
+	public boolean isThisInstanceFieldReader() {
+		return get(THIS_INSTANCE_FIELD_READER);
+	}
+
+	public boolean isThisInstanceFieldWriter() {
+		return get(THIS_INSTANCE_FIELD_WRITER);
+	}
+
+	public boolean isOtherInstanceFieldReader() {
+		return get(OTHER_INSTANCE_FIELD_READER);
+	}
+
+	public boolean isOtherInstanceFieldWriter() {
+		return get(OTHER_INSTANCE_FIELD_WRITER);
+	}
+
+	public boolean isStaticFieldReader() {
+		return get(STATIC_FIELD_READER);
+	}
+
+	public boolean isStaticFieldWriter() {
+		return get(STATIC_FIELD_WRITER);
+	}
+
+	public boolean isTypeManipulator() {
+		return get(TYPE_MANIPULATOR);
+	}
+
+	public boolean isStraightLineCode() {
+		return get(STRAIGHT_LINE_CODE);
+	}
+
+	public boolean isLoopingCode() {
+		return get(LOOPING_CODE);
+	}
+
+	public boolean isSwitcher() {
+		return get(SWITCHER);
+	}
+
+	public boolean throwsExceptions() {
+		return get(THROWS_EXCEPTIONS);
+	}
+
+	public boolean isLocalVarReader() {
+		return get(LOCAL_VAR_READER);
+	}
+
+	public boolean isLocalVarWriter() {
+		return get(LOCAL_VAR_WRITER);
+	}
+
+	public boolean isArrayCreator() {
+		return get(ARRAY_CREATOR);
+	}
+
+	public boolean isArrayReader() {
+		return get(ARRAY_READER);
+	}
+
+	public boolean isArrayWriter() {
+		return get(ARRAY_WRITER);
+	}
+
+	public boolean isPolymorphic() {
+		return get(POLYMORPHIC);
+	}
+
+	public boolean isSingleReturner() {
+		return get(SINGLE_RETURNER);
+	}
+
+	public boolean isMultipleReturner() {
+		return get(MULTIPLE_RETURNER);
+	}
+
+	public boolean isClient() {
+		return get(CLIENT);
+	}
+
+	public boolean isJdkClient() {
+		return get(JDK_CLIENT);
+	}
+
+	public boolean isTailCaller() {
+		return get(TAIL_CALLER);
+	}
+
+	/**
+	 * do both rows record exactly the same nanopatterns?
+	 */
+	public boolean sameResults(PatternList other) {
+		return mask == other.mask;
+	}
+
 }
@@ -1,23 +1,41 @@
 package uk.ac.glasgow.jsinger.nanopatterns;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.EmptyVisitor;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.MethodNode;
 
@@ -34,7 +52,6 @@ public class PatternTester {
 	public static void setUpMethodMap() {
 		testClassName = "uk.ac.glasgow.jsinger.nanopatterns.Foo";
 		
-		TestPatternSpotter.mode = TestPatternSpotter.TEST_MODE;
 		methodMap = new HashMap<String, MethodNode>();
 		
 		if (testClassName.charAt(0) == 'L') {
@@ -110,7 +127,7 @@ public class PatternTester {
 				return;
 			}
 			classNode = cn; 
-			List methods = cn.methods;
+			List<?> methods = cn.methods;
 			for (int i = 0; i < methods.size(); ++i) {
 				MethodNode method = (MethodNode) methods.get(i);
 				String methodKey = method.name + ":" + method.desc;
@@ -129,7 +146,7 @@ public class PatternTester {
 		MethodNode method = methodMap.get(methodName);
 		PatternList resultList = TestPatternSpotter.analyseMethod(classNode, method);
 		if (resultList != null) {
-			assertTrue(resultList.noParams);
+			assertTrue(resultList.noParams());
 		} else {
 			fail("Program did not execute properly");
 		}
@@ -141,7 +158,7 @@ public class PatternTester {
 		MethodNode method = methodMap.get(methodName);
 		PatternList resultList = TestPatternSpotter.analyseMethod(classNode, method);
 		if (resultList != null) {
-			assertFalse(resultList.noParams);
+			assertFalse(resultList.noParams());
 		} else {
 			fail("Program did not execute properly");
 		}
@@ -153,7 +170,7 @@ public class PatternTester {
 		MethodNode method = methodMap.get(methodName);
 		PatternList resultList = TestPatternSpotter.analyseMethod(classNode, method);
 		if (resultList != null) {
-			assertTrue(resultList.noReturn);
+			assertTrue(resultList.noReturn());
 		} else {
 			fail("Program did not execute properly");
 		}
@@ -165,7 +182,7 @@ public class PatternTester {
 		MethodNode method = methodMap.get(methodName);
 		PatternList resultList = TestPatternSpotter.analyseMethod(classNode, method);
 		if (resultList != null) {
-			assertFalse(resultList.noReturn);
+			assertFalse(resultList.noReturn());
 		} else {
 			fail("Program did not execute properly");
 		}
@@ -177,7 +194,7 @@ public class PatternTester {
 		MethodNode method = methodMap.get(methodName);
 		PatternList resultList = TestPatternSpotter.analyseMethod(classNode, method);
 		if (resultList != null) {
-			assertTrue(resultList.isRecursive);
+			assertTrue(resultList.isRecursive());
 		} else {
 			fail("Program did not execute properly");
 		}
@@ -189,7 +206,7 @@ public class PatternTester {
 		MethodNode method = methodMap.get(methodName);
 		PatternList resultList = TestPatternSpotter.analyseMethod(classNode, method);
 		if (resultList != null) {
-			assertFalse(resultList.isRecursive);
+			assertFalse(resultList.isRecursive());
 		} else {
 			fail("Program did not execute properly");
 		}
@@ -201,7 +218,7 @@ public class PatternTester {
 		MethodNode method = methodMap.get(methodName);
 		PatternList resultList = TestPatternSpotter.analyseMethod(classNode, method);
 		if (resultList != null) {
-			assertTrue(resultList.isSameNameCaller);
+			assertTrue(resultList.isSameNameCaller());
 		} else {
 			fail("Program did not execute properly");
 		}
@@ -213,7 +230,7 @@ public class PatternTester {
 		MethodNode method = methodMap.get(methodName);
 		PatternList resultList = TestPatternSpotter.analyseMethod(classNode, method);
 		if (resultList != null) {
-			assertFalse(resultList.isSameNameCaller);
+			assertFalse(resultList.isSameNameCaller());
 		} else {
 			fail("Program did not execute properly");
 		}
@@ -225,7 +242,7 @@ public class PatternTester {
 		MethodNode method = methodMap.get(methodName);
 		PatternList resultList = TestPatternSpotter.analyseMethod(classNode, method);
 		if (resultList != null) {
-			assertTrue(resultList.isLeaf);
+			assertTrue(resultList.isLeaf());
 		} else {
 			fail("Program did not execute properly");
 		}
@@ -237,11 +254,689 @@ public class PatternTester {
 		MethodNode method = methodMap.get(methodName);
 		PatternList resultList = TestPatternSpotter.analyseMethod(classNode, method);
 		if (resultList != null) {
-			assertFalse(resultList.isLeaf);
+			assertFalse(resultList.isLeaf());
 		} else {
 			fail("Program did not execute properly");
 		}
 	}
-	
+
+	@Test
+	public void testFieldOwnerTracked() {
+		PatternList copyTo = TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("copyTo:(Luk/ac/glasgow/jsinger/nanopatterns/Foo;)V"));
+		assertTrue(copyTo.isThisInstanceFieldReader());
+		assertFalse(copyTo.isThisInstanceFieldWriter());
+		assertFalse(copyTo.isOtherInstanceFieldReader());
+		assertTrue(copyTo.isOtherInstanceFieldWriter());
+		PatternList peek = TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("peek:(Luk/ac/glasgow/jsinger/nanopatterns/Foo;)Z"));
+		assertFalse(peek.isThisInstanceFieldReader());
+		assertTrue(peek.isOtherInstanceFieldReader());
+		// p is o on one path into the write
+		PatternList branch = TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("branch:(Luk/ac/glasgow/jsinger/nanopatterns/Foo;Z)V"));
+		assertFalse(branch.isThisInstanceFieldWriter());
+		assertTrue(branch.isOtherInstanceFieldWriter());
+		// p is o from the second iteration on
+		PatternList loop = TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("loop:(Luk/ac/glasgow/jsinger/nanopatterns/Foo;I)V"));
+		assertFalse(loop.isThisInstanceFieldWriter());
+		assertTrue(loop.isOtherInstanceFieldWriter());
+	}
+
+	@Test
+	public void testTailCaller() {
+		assertTrue(TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("f:(I)I")).isTailCaller());
+		assertTrue(TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("h:()V")).isTailCaller());
+		// the increment after the call is still to come
+		assertFalse(TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("counted:()V")).isTailCaller());
+	}
+
+	@Test
+	public void testPolymorphic() {
+		assertTrue(TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("run:(Ljava/lang/Runnable;)V")).isPolymorphic());
+		// AbstractCollection.size is abstract
+		assertTrue(TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("size:(Ljava/util/AbstractCollection;)I")).isPolymorphic());
+		// Task inherits run from Runnable without redeclaring it
+		assertTrue(TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("start:(Luk/ac/glasgow/jsinger/nanopatterns/Foo$Task;)V")).isPolymorphic());
+		assertFalse(TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("j:()V")).isPolymorphic());
+	}
+
+	@Test
+	public void testReturners() {
+		PatternList single = TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("f:(I)I"));
+		assertTrue(single.isSingleReturner());
+		assertFalse(single.isMultipleReturner());
+		PatternList multiple = TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("sign:(I)I"));
+		assertFalse(multiple.isSingleReturner());
+		assertTrue(multiple.isMultipleReturner());
+		// ends in a throw, not a return
+		PatternList none = TestPatternSpotter.analyseMethod(classNode,
+				methodMap.get("k:()V"));
+		assertFalse(none.isSingleReturner());
+		assertFalse(none.isMultipleReturner());
+	}
+
+	@Test
+	public void testFusedSpotterMatchesSpotters() {
+		for (MethodNode method : methodMap.values()) {
+			PatternList expected = TestPatternSpotter.analyseMethodWithSpotters(classNode, method);
+			PatternList actual = TestPatternSpotter.analyseMethod(classNode, method);
+			if (expected == null) {
+				assertTrue(actual == null);
+			} else {
+				assertTrue(method.name + method.desc, expected.sameResults(actual));
+			}
+		}
+	}
+
+	@Test
+	public void testColumnarResultsRoundTrip() throws IOException {
+		File dir = File.createTempFile("columns", "");
+		dir.delete();
+		dir.mkdir();
+		String prefix = new File(dir, "foo").getPath();
+		List<PatternList> written = new ArrayList<PatternList>();
+		ColumnarResultWriter writer = new ColumnarResultWriter(prefix);
+		for (MethodNode method : methodMap.values()) {
+			PatternList resultList = TestPatternSpotter.analyseMethod(classNode, method);
+			if (resultList != null) {
+				writer.write(resultList);
+				written.add(resultList);
+			}
+		}
+		writer.close();
+
+		ColumnarResults results = ColumnarResults.open(prefix);
+		assertEquals(written.size(), results.getNumMethods());
+		long[] expected = new long[PatternList.getColumnCount()];
+		for (int row = 0; row < written.size(); row++) {
+			PatternList resultList = written.get(row);
+			assertEquals(resultList.methodName, results.getMethodName(row));
+			assertEquals(resultList.methodDesc, results.getMethodDesc(row));
+			assertEquals(resultList.numInstrs, results.getNumInstrs(row));
+			assertTrue(resultList.sameResults(results.getRow(row)));
+			for (int pattern = 0; pattern < expected.length; pattern++) {
+				if (resultList.get(pattern)) {
+					expected[pattern]++;
+				}
+			}
+		}
+		assertTrue(Arrays.equals(expected, results.patternFrequencies()));
+		long[] foo = results.frequenciesByPackage().get("uk.ac.glasgow.jsinger.nanopatterns");
+		assertEquals(written.size(), foo[PatternList.getColumnCount()]);
+
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testDispatcherRoutesSubscribedOpcodes() {
+		CastDetector detector = new CastDetector();
+		PatternDispatcher dispatcher = new PatternDispatcher(
+				Collections.<PatternDetector> singletonList(detector));
+		int casters = 0;
+		for (MethodNode method : methodMap.values()) {
+			PatternList expected = TestPatternSpotter.analyseMethod(classNode, method);
+			if (expected == null) {
+				continue;
+			}
+			dispatcher.startMethod(classNode.name, method.name, method.desc);
+			method.instructions.accept(dispatcher);
+			PatternList actual = new PatternList();
+			dispatcher.report(actual);
+			assertEquals(method.name + method.desc, expected.isTypeManipulator(),
+					actual.get(PatternList.NUM_PATTERNS));
+			if (expected.isTypeManipulator()) {
+				casters++;
+			}
+		}
+		assertTrue(casters > 0);
+		assertFalse(detector.sawOtherInstruction);
+	}
+
+	@Test
+	public void testResultCacheSurvivesReopenAndTruncation() throws IOException {
+		File dir = createTempDir("cache");
+		List<PatternList> rows = analyseFoo();
+		byte[] key = ResultCache.hash("Foo".getBytes("UTF-8"));
+		byte[] otherKey = ResultCache.hash("Bar".getBytes("UTF-8"));
+
+		ResultCache cache = new ResultCache(dir, 0, 0);
+		assertEquals(null, cache.get(key));
+		cache.put(key, rows);
+		assertSameRows(rows, cache.get(key));
+		cache.close();
+
+		cache = new ResultCache(dir, 0, 0);
+		assertSameRows(rows, cache.get(key));
+		assertEquals(null, cache.get(otherKey));
+		cache.close();
+
+		// a record cut short, as by a crash mid-append
+		File store = new File(dir, "results.dat");
+		long length = store.length();
+		FileOutputStream out = new FileOutputStream(store, true);
+		out.write(new byte[] { 0, 0, 1, 2, 3 });
+		out.close();
+		cache = new ResultCache(dir, 0, 0);
+		assertEquals(length, store.length());
+		assertSameRows(rows, cache.get(key));
+		cache.put(otherKey, rows.subList(0, 1));
+		cache.close();
+
+		cache = new ResultCache(dir, 0, 0);
+		assertSameRows(rows, cache.get(key));
+		assertSameRows(rows.subList(0, 1), cache.get(otherKey));
+		cache.close();
+		deleteTree(dir);
+	}
+
+	@Test
+	public void testCachedRowsResolvePolymorphicFromCalls() throws IOException {
+		List<PatternList> rows = new ArrayList<PatternList>();
+		int polymorphic = 0;
+		for (MethodNode method : methodMap.values()) {
+			PatternList resultList = TestPatternSpotter.analyseMethod(classNode,
+					method, PatternList.allColumns(), HierarchyIndex.getShared(), true);
+			if (resultList != null) {
+				rows.add(resultList);
+				if (resultList.isPolymorphic()) {
+					polymorphic++;
+				}
+			}
+		}
+		assertTrue(polymorphic > 0);
+		List<PatternList> cached = ResultCache.decodeRows(ResultCache.encodeRows(rows));
+		assertEquals(rows.size(), cached.size());
+		for (int i = 0; i < rows.size(); i++) {
+			PatternList resultList = cached.get(i);
+			assertFalse(resultList.isPolymorphic());
+			assertEquals(resultList.methodName, rows.get(i).isPolymorphic(),
+					resultList.calls.isPolymorphic(HierarchyIndex.getShared()));
+		}
+	}
+
+	@Test
+	public void testMappedJarReaderMatchesJarFile() throws IOException {
+		byte[] text = new byte[100000];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = (byte) "nanopatterns ".charAt(i % 13);
+		}
+		Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+		entries.put("nested/", new byte[0]);
+		entries.put("nested/Shape.class", shapeClass());
+		entries.put("nested/empty.txt", new byte[0]);
+		entries.put("nested/text.txt", text);
+		File dir = createTempDir("mapped");
+		for (boolean stored : new boolean[] { true, false }) {
+			File jar = new File(dir, stored ? "stored.jar" : "deflated.jar");
+			FileOutputStream out = new FileOutputStream(jar);
+			out.write(zip(entries, stored));
+			out.close();
+
+			MappedJarReader reader = new MappedJarReader(jar.getPath());
+			JarFile jarFile = new JarFile(jar);
+			assertEquals(entries.size(), reader.getEntryCount());
+			byte[] buffer = new byte[4];
+			for (int i = 0; i < reader.getEntryCount(); i++) {
+				String name = reader.getName(i);
+				JarEntry entry = jarFile.getJarEntry(name);
+				assertEquals(entry.isDirectory(), reader.isDirectory(i));
+				assertEquals(stored, reader.isStored(i));
+				byte[] expected = readAll(jarFile.getInputStream(entry));
+				assertTrue(Arrays.equals(entries.get(name), expected));
+				assertEquals(expected.length, reader.getSize(i));
+				buffer = reader.read(i, buffer);
+				assertTrue(Arrays.equals(expected,
+						Arrays.copyOf(buffer, reader.getSize(i))));
+			}
+			jarFile.close();
+			reader.close();
+		}
+		deleteTree(dir);
+	}
+
+	@Test
+	public void testMappedJarReaderRejectsTruncatedEntry() throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+		entries.put("nested/Shape.class", shapeClass());
+		byte[] jar = zip(entries, true);
+		// claim a larger uncompressed size in the central directory
+		for (int i = 0; i + 4 <= jar.length; i++) {
+			if (jar[i] == 'P' && jar[i + 1] == 'K' && jar[i + 2] == 1
+					&& jar[i + 3] == 2) {
+				jar[i + 25] += 1;
+			}
+		}
+		MappedJarReader reader = new MappedJarReader(ByteBuffer.wrap(jar), "bad.jar");
+		try {
+			reader.read(0, null);
+			fail("read past the end of a stored entry");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("truncated jar entry"));
+		}
+		reader.close();
+	}
+
+	@Test
+	public void testPatternIndexCompression() {
+		long[][] bitmaps = { {}, { 0 }, { -1L }, { 5 },
+				{ 0, 0, 0, -1L, -1L, 5, 7, 0, -1L, 1L << 63 },
+				{ 3, -1L, -1L, 0, 0, 0, 9 } };
+		for (long[] bitmap : bitmaps) {
+			long[] compressed = PatternIndex.compress(bitmap);
+			long[] decompressed = PatternIndex.decompress(
+					LongBuffer.wrap(compressed), compressed.length, bitmap.length);
+			assertTrue(Arrays.toString(bitmap), Arrays.equals(bitmap, decompressed));
+		}
+	}
+
+	@Test
+	public void testPatternIndexQueries() throws IOException {
+		File dir = createTempDir("index");
+		String prefix = new File(dir, "run").getPath();
+		// 70 rows: NOT must not set the 58 unused bits of the last word
+		int numMethods = 70;
+		long columns = PatternList.allColumns()
+				& ~(1L << PatternList.LOOPING_CODE);
+		BinaryResultWriter writer = new BinaryResultWriter(prefix, columns);
+		for (int i = 0; i < numMethods; i++) {
+			PatternList row = new PatternList();
+			row.className = "C";
+			row.methodName = "m" + i;
+			row.methodDesc = "()V";
+			row.set(PatternList.LEAF, i % 3 == 0);
+			row.set(PatternList.NO_PARAMS, i % 2 == 0);
+			writer.write(row);
+		}
+		writer.close();
+		PatternIndex.build(prefix);
+
+		PatternIndex index = PatternIndex.open(prefix);
+		assertEquals(numMethods, index.getNumMethods());
+		assertEquals(24, PatternIndex.count(index.evaluate("leaf")));
+		assertEquals(46, PatternIndex.count(index.evaluate("NOT leaf")));
+		assertEquals(numMethods, PatternIndex.count(index.evaluate("leaf OR !leaf")));
+		assertEquals(0, PatternIndex.count(index.evaluate("leaf AND NOT leaf")));
+		assertEquals(12, PatternIndex.count(index.evaluate("leaf & noparams")));
+		assertEquals(12, PatternIndex.count(index.evaluate("leaf AND NOT noparams")));
+		assertEquals(23, PatternIndex.count(index.evaluate("NOT (leaf OR noparams)")));
+		assertFalse(index.isComputed(PatternList.LOOPING_CODE));
+		try {
+			index.evaluate("leaf AND looper");
+			fail("query on an uncomputed pattern");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		deleteTree(dir);
+	}
+
+	@Test
+	public void testPatternIndexUsesRowsColumns() throws IOException {
+		File dir = createTempDir("index");
+		String prefix = new File(dir, "run").getPath();
+		// rows from a run whose detectors were just leaf and a plugin
+		DataOutputStream rows = new DataOutputStream(new FileOutputStream(
+				prefix + ".rows"));
+		rows.writeInt(BinaryResultWriter.ROWS_MAGIC);
+		rows.writeInt(BinaryResultWriter.VERSION);
+		rows.writeInt(BinaryResultWriter.RECORD_BYTES);
+		rows.writeInt(2);
+		rows.writeLong(3);
+		rows.writeUTF("leaf");
+		rows.writeUTF("custom");
+		long[] masks = { 1, 2, 3, 2 };
+		for (long mask : masks) {
+			rows.writeInt(0);
+			rows.writeInt(0);
+			rows.writeInt(0);
+			rows.writeInt(1);
+			rows.writeLong(mask);
+		}
+		rows.close();
+		PatternIndex.build(prefix);
+
+		PatternIndex index = PatternIndex.open(prefix);
+		assertEquals(masks.length, index.getNumMethods());
+		assertEquals(2, PatternIndex.count(index.evaluate("custom AND NOT leaf")));
+		assertEquals(2, PatternIndex.count(index.evaluate("leaf")));
+		try {
+			index.evaluate("looper");
+			fail("query on a pattern the rows do not have");
+		} catch (IllegalArgumentException e) {
+			assertEquals("unknown pattern looper", e.getMessage());
+		}
+		deleteTree(dir);
+	}
+
+	@Test
+	public void testScanManifestRuns() throws IOException {
+		File dir = createTempDir("manifest");
+		File file = new File(dir, "scan.manifest");
+		List<PatternList> rows = analyseFoo();
+		List<PatternList> changedRows = rows.subList(0, 1);
+		byte[] hash = ResultCache.hash("A".getBytes("UTF-8"));
+		byte[] changedHash = ResultCache.hash("A2".getBytes("UTF-8"));
+
+		ScanManifest manifest = new ScanManifest(file);
+		assertEquals(null, manifest.getUnchanged("A.class", 10, 100));
+		manifest.put("A.class", 10, 100, hash, rows);
+		manifest.put("B.class", 20, 200, hash, rows);
+		manifest.put("Gone.class", 30, 300, hash, rows);
+		manifest.save();
+
+		// A unchanged, B touched with the same content, Gone deleted
+		manifest = new ScanManifest(file);
+		assertSameRows(rows, manifest.getUnchanged("A.class", 10, 100));
+		assertEquals(null, manifest.getUnchanged("B.class", 20, 201));
+		assertSameRows(rows, manifest.getSameContents("B.class", 20, 201, hash));
+		manifest.save();
+
+		// A changed; B's new time was recorded; Gone was dropped
+		manifest = new ScanManifest(file);
+		assertEquals(null, manifest.getUnchanged("A.class", 11, 101));
+		assertEquals(null, manifest.getSameContents("A.class", 11, 101, changedHash));
+		manifest.put("A.class", 11, 101, changedHash, changedRows);
+		assertSameRows(rows, manifest.getUnchanged("B.class", 20, 201));
+		assertEquals(null, manifest.getUnchanged("Gone.class", 30, 300));
+		manifest.save();
+
+		manifest = new ScanManifest(file);
+		assertSameRows(changedRows, manifest.getUnchanged("A.class", 11, 101));
+		deleteTree(dir);
+	}
+
+	@Test
+	public void testNestedArchivesScanned() throws IOException {
+		File dir = createTempDir("nested");
+		Map<String, byte[]> stored = new LinkedHashMap<String, byte[]>();
+		stored.put("nested/Shape.class", shapeClass());
+		stored.put("nested/User.class", shapeUserClass("nested/User"));
+		Map<String, byte[]> deflated = new LinkedHashMap<String, byte[]>();
+		deflated.put("nested/OtherUser.class", shapeUserClass("nested/OtherUser"));
+		Map<String, byte[]> war = new LinkedHashMap<String, byte[]>();
+		war.put("WEB-INF/lib/stored.jar", zip(stored, true));
+		war.put("WEB-INF/lib/deflated.jar", zip(deflated, false));
+		File outer = new File(dir, "app.war");
+		FileOutputStream out = new FileOutputStream(outer);
+		out.write(zip(war, true));
+		out.close();
+
+		for (String[] args : new String[][] { {}, { "-mmap" } }) {
+			AnalysisOptions options = AnalysisOptions.parse(args,
+					new ArrayList<String>());
+			final List<PatternList> rows = new ArrayList<PatternList>();
+			options.writer = new ResultWriter() {
+				public void write(PatternList resultList) {
+					rows.add(resultList);
+				}
+
+				public void flush() {
+				}
+
+				public void close() {
+				}
+			};
+			// as main does for archive targets
+			options.hierarchy.addJar(outer.getPath());
+			new TestPatternSpotter(TestPatternSpotter.ANALYSE_JAR_FILE,
+					outer.getPath(), options).scanJar(outer.getPath());
+			options.close();
+			int users = 0;
+			for (PatternList resultList : rows) {
+				if (resultList.methodName.equals("use")) {
+					// Shape.area is only found inside the war
+					assertTrue(resultList.className, resultList.isPolymorphic());
+					users++;
+				}
+			}
+			assertEquals(2, users);
+		}
+
+		// archives under a directory are registered when the scan
+		// meets them, and a class missing until then is found
+		HierarchyIndex hierarchy = new HierarchyIndex();
+		hierarchy.addDirectory(dir);
+		assertFalse(hierarchy.isAbstractMethod("nested/Shape", "area", "()D"));
+		hierarchy.addJar(outer.getPath());
+		assertTrue(hierarchy.isAbstractMethod("nested/Shape", "area", "()D"));
+		hierarchy.close();
+		deleteTree(dir);
+	}
+
+	@Test
+	public void testHierarchyRereadsChangedJar() throws IOException {
+		File dir = createTempDir("rebuilt");
+		File jar = new File(dir, "app.jar");
+		Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+		entries.put("nested/Shape.class", shapeClass());
+		FileOutputStream out = new FileOutputStream(jar);
+		out.write(zip(entries, false));
+		out.close();
+
+		HierarchyIndex hierarchy = new HierarchyIndex();
+		hierarchy.addJar(jar.getPath());
+		assertTrue(hierarchy.isAbstractMethod("nested/Shape", "area", "()D"));
+
+		// rebuilt without Shape, and named by another path
+		entries.clear();
+		entries.put("nested/User.class", shapeUserClass("nested/User"));
+		out = new FileOutputStream(jar);
+		out.write(zip(entries, false));
+		out.close();
+		jar.setLastModified(jar.lastModified() - 10000);
+		hierarchy.addJar(dir.getPath() + "/../" + dir.getName() + "/app.jar");
+		assertFalse(hierarchy.isAbstractMethod("nested/Shape", "area", "()D"));
+		hierarchy.close();
+		deleteTree(dir);
+	}
+
+	@Test
+	public void testHierarchyEvictsChangedClasses() throws IOException {
+		File dir = createTempDir("evicted");
+		File shape = new File(dir, "nested/Shape.class");
+		shape.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(shape);
+		out.write(shapeClass());
+		out.close();
+
+		HierarchyIndex hierarchy = new HierarchyIndex();
+		hierarchy.addDirectory(dir);
+		assertTrue(hierarchy.isAbstractMethod("nested/Shape", "area", "()D"));
+		assertFalse(hierarchy.isAbstractMethod("java/lang/Object", "hashCode", "()I"));
+
+		// recompiled without area: remembered until evicted
+		out = new FileOutputStream(shape);
+		out.write(shapeUserClass("nested/Shape"));
+		out.close();
+		assertTrue(hierarchy.isAbstractMethod("nested/Shape", "area", "()D"));
+		long loads = hierarchy.getLoads();
+		hierarchy.evict(Collections.singleton("nested/Shape"));
+		assertFalse(hierarchy.isAbstractMethod("nested/Shape", "area", "()D"));
+		assertFalse(hierarchy.isAbstractMethod("java/lang/Object", "hashCode", "()I"));
+		// Shape is read again, Object is not
+		assertEquals(loads + 1, hierarchy.getLoads());
+		hierarchy.close();
+		deleteTree(dir);
+	}
+
+	/** HELPERS **/
+
+	private static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		dir.delete();
+		dir.mkdir();
+		return dir;
+	}
+
+	private static void deleteTree(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				deleteTree(f);
+			}
+		}
+		file.delete();
+	}
+
+	/** rows for every analysable method of Foo **/
+	private static List<PatternList> analyseFoo() {
+		List<PatternList> rows = new ArrayList<PatternList>();
+		for (MethodNode method : methodMap.values()) {
+			PatternList resultList = TestPatternSpotter.analyseMethod(classNode, method);
+			if (resultList != null) {
+				rows.add(resultList);
+			}
+		}
+		return rows;
+	}
+
+	/** the rows match, apart from polymorphic, which is not stored **/
+	private static void assertSameRows(List<PatternList> expected,
+			List<PatternList> actual) {
+		long stored = ~(1L << PatternList.POLYMORPHIC);
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			PatternList e = expected.get(i);
+			PatternList a = actual.get(i);
+			assertEquals(e.className, a.className);
+			assertEquals(e.methodName + e.methodDesc, a.methodName + a.methodDesc);
+			assertEquals(e.numInstrs, a.numInstrs);
+			assertEquals(e.getMask() & stored, a.getMask());
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int n; (n = in.read(buffer)) != -1;) {
+			bytes.write(buffer, 0, n);
+		}
+		in.close();
+		return bytes.toByteArray();
+	}
+
+	/** a zip of the given entries, all STORED or all DEFLATED **/
+	private static byte[] zip(Map<String, byte[]> entries, boolean stored)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream out = new ZipOutputStream(bytes);
+		for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+			ZipEntry zipEntry = new ZipEntry(entry.getKey());
+			if (stored) {
+				CRC32 crc = new CRC32();
+				crc.update(entry.getValue());
+				zipEntry.setMethod(ZipEntry.STORED);
+				zipEntry.setSize(entry.getValue().length);
+				zipEntry.setCrc(crc.getValue());
+			}
+			out.putNextEntry(zipEntry);
+			out.write(entry.getValue());
+			out.closeEntry();
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/** abstract class nested.Shape { abstract double area(); } **/
+	private static byte[] shapeClass() {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT,
+				"nested/Shape", null, "java/lang/Object", null);
+		cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, "area",
+				"()D", null, null).visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/** class name { double use(Shape s) { return s.area(); } } **/
+	private static byte[] shapeUserClass(String name) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC, name, null,
+				"java/lang/Object", null);
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "use",
+				"(Lnested/Shape;)D", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 1);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "nested/Shape", "area", "()D");
+		mv.visitInsn(Opcodes.DRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * plugin version of the typeManipulator pattern, which notes
+	 * any instruction it should not have been sent
+	 */
+	private static class CastDetector extends EmptyVisitor implements PatternDetector {
+
+		boolean casts;
+		boolean sawOtherInstruction;
+
+		public int[] getOpcodes() {
+			return new int[] { Opcodes.CHECKCAST, Opcodes.INSTANCEOF };
+		}
+
+		public String[] getPatternNames() {
+			return new String[] { "caster" };
+		}
+
+		public void startMethod(String className, String methodName,
+				String methodDesc) {
+			casts = false;
+		}
+
+		public boolean exhibits(int pattern) {
+			return casts;
+		}
+
+		public void visitTypeInsn(int opcode, String type) {
+			if (opcode == Opcodes.CHECKCAST || opcode == Opcodes.INSTANCEOF) {
+				casts = true;
+			} else {
+				sawOtherInstruction = true;
+			}
+		}
+
+		public void visitInsn(int opcode) {
+			sawOtherInstruction = true;
+		}
+
+		public void visitVarInsn(int opcode, int var) {
+			sawOtherInstruction = true;
+		}
+
+		public void visitFieldInsn(int opcode, String owner, String name,
+				String desc) {
+			sawOtherInstruction = true;
+		}
+
+		public void visitMethodInsn(int opcode, String owner, String name,
+				String desc) {
+			sawOtherInstruction = true;
+		}
+
+		public void visitJumpInsn(int opcode, Label label) {
+			sawOtherInstruction = true;
+		}
+
+		public void visitLabel(Label label) {
+			sawOtherInstruction = true;
+		}
+	}
 
 }
@@ -7,7 +7,6 @@ package uk.ac.glasgow.jsinger.nanopatterns;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.MethodAdapter;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.ClassReader;
 
 
 /**
@@ -29,9 +28,20 @@ public class PolymorphicPatternSpotter extends MethodAdapter {
    */
   private boolean polymorphic;
 
+  /**
+   * shared lookup of abstract callee methods
+   */
+  private final HierarchyIndex hierarchy;
+
   
   public PolymorphicPatternSpotter(MethodVisitor mv) {
+    this(mv, HierarchyIndex.getShared());
+  }
+
+  public PolymorphicPatternSpotter(MethodVisitor mv,
+				   HierarchyIndex hierarchy) {
     super(mv);
+    this.hierarchy = hierarchy;
     polymorphic = false;
   }
     
@@ -49,28 +59,13 @@ public class PolymorphicPatternSpotter extends MethodAdapter {
     if (opcode == Opcodes.INVOKEVIRTUAL) {
       // check callee to see if it is an abstract method
       // (from an abstract class)
-      // (NOTE: This is comparatively heavyweight analysis,
-      // so we only perform it if we have not yet established
-      // that the method issues any polymorphic calls.
-      if (!polymorphic) {
-	try {
-	  ClassReader testAbstractCR = new ClassReader(owner);
-	  TestForAbstractMethod testAbsMethod = new
-	    TestForAbstractMethod(name, desc);
-	  testAbstractCR.accept(testAbsMethod, ClassReader.SKIP_DEBUG);
-	  
-	  if (testAbsMethod.getIsAbstractMethod()) {
-	    polymorphic = true;
-	  }
-	}
-	catch (Exception e) {
-	  // bail out - assume this is not
-	  // an abstract method call
-	  
-	  // reasons for bailout?
-	  // 1) we cannot locate the class containing
-	  //    callee method.
-	}
+      // (NOTE: the hierarchy index reads each callee class
+      // at most once per run, and memoizes every answer,
+      // but we still skip it once the method is known to
+      // issue polymorphic calls.)
+      if (!polymorphic &&
+	  hierarchy.isAbstractMethod(owner, name, desc)) {
+	polymorphic = true;
       }
     }
     
@@ -0,0 +1,385 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * On-disk cache of analysis results, keyed by a hash of the class
+ * file bytes, so unchanged classes can skip ASM entirely on later
+ * runs.
+ * The store is a single append-only file of records
+ *   [written time][key][payload length][row count][rows...]
+ * indexed in memory when the cache is opened. When the cache is
+ * closed, records older than the maximum age are dropped, then the
+ * oldest records are dropped until the file fits the maximum size.
+ * Records hit during the run count as freshly written.
+ * Lookups only lock the in-memory index: payloads are read with
+ * positional reads outside it, and appends are serialized on a
+ * lock of their own, so worker threads do not queue on cache I/O.
+ * Rows always cover every method of the class, so the same entry
+ * serves any class or method filter.
+ * The polymorphic pattern also depends on the classes called,
+ * which are not part of the key, so it is not stored; instead each
+ * row keeps its CallSummary, which TestPatternSpotter resolves
+ * against the current hierarchy on a hit.
+ */
+public class ResultCache {
+
+	private static final String STORE_NAME = "results.dat";
+
+	/** bump whenever the row encoding or pattern semantics change **/
+	private static final int FORMAT_VERSION = 8;
+
+	/** as stored: the version, mixed with the report columns **/
+	private static final int FORMAT = format(FORMAT_VERSION);
+
+	private static final int KEY_BYTES = 20;
+
+	/** written time, key and payload length **/
+	private static final int RECORD_HEADER_BYTES = 8 + KEY_BYTES + 4;
+
+	private final File store;
+	private final long maxAgeMillis;
+	private final long maxBytes;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	/** where each key's payload is in the store; guarded by this **/
+	private final Map<Key, Record> records = new HashMap<Key, Record>();
+	private final Set<Key> used = new HashSet<Key>();
+
+	private long hits;
+	private long misses;
+
+	/** serializes appends; taken before this, never after **/
+	private final Object appendLock = new Object();
+
+	/** end of the store, where the next record goes **/
+	private long end;
+
+	/**
+	 * opens (or creates) the cache in the given directory.
+	 * maxAgeMillis and maxBytes of 0 or less mean no limit.
+	 */
+	public ResultCache(File directory, long maxAgeMillis, long maxBytes)
+			throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create cache directory " + directory);
+		}
+		this.store = new File(directory, STORE_NAME);
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxBytes = maxBytes;
+		this.file = new RandomAccessFile(store, "rw");
+		this.channel = file.getChannel();
+		load();
+	}
+
+	/** hashes class file bytes into a cache key **/
+	public static byte[] hash(byte[] classBytes) {
+		return hash(classBytes, 0, classBytes.length);
+	}
+
+	public static byte[] hash(byte[] classBytes, int offset, int length) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(classBytes, offset, length);
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * the rows stored for this key, or null on a miss
+	 */
+	public List<PatternList> get(byte[] key) throws IOException {
+		Key k = new Key(key);
+		Record record;
+		synchronized (this) {
+			record = records.get(k);
+			if (record == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			used.add(k);
+		}
+		return decodeRows(readPayload(record));
+	}
+
+	/** appends the rows for this key to the store **/
+	public void put(byte[] key, List<PatternList> rows)
+			throws IOException {
+		Key k = new Key(key);
+		long now = System.currentTimeMillis();
+		byte[] payload = encodeRows(rows);
+		ByteArrayOutputStream record = new ByteArrayOutputStream(
+				RECORD_HEADER_BYTES + payload.length);
+		DataOutputStream out = new DataOutputStream(record);
+		out.writeLong(now);
+		out.write(key);
+		out.writeInt(payload.length);
+		out.write(payload);
+		ByteBuffer bytes = ByteBuffer.wrap(record.toByteArray());
+		long start;
+		synchronized (appendLock) {
+			start = end;
+			while (bytes.hasRemaining()) {
+				channel.write(bytes, start + bytes.position());
+			}
+			end += bytes.capacity();
+		}
+		// only visible once the whole record is in the store
+		synchronized (this) {
+			records.put(k, new Record(start + RECORD_HEADER_BYTES,
+					payload.length, now));
+			used.add(k);
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * applies the age and size limits and compacts the store,
+	 * then closes it
+	 */
+	public void close() throws IOException {
+		synchronized (appendLock) {
+			synchronized (this) {
+				compact();
+			}
+		}
+	}
+
+	private void compact() throws IOException {
+		long now = System.currentTimeMillis();
+		List<Key> keep = new ArrayList<Key>();
+		for (Map.Entry<Key, Record> e : records.entrySet()) {
+			Record record = e.getValue();
+			if (used.contains(e.getKey())) {
+				record.written = now;
+			}
+			long age = now - record.written;
+			if (maxAgeMillis <= 0 || age <= maxAgeMillis) {
+				keep.add(e.getKey());
+			}
+		}
+		// newest first, so a size limit drops the oldest
+		Collections.sort(keep, new Comparator<Key>() {
+			public int compare(Key a, Key b) {
+				return Long.compare(records.get(b).written, records.get(a).written);
+			}
+		});
+
+		File compacted = new File(store.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(compacted)));
+		try {
+			out.writeInt(FORMAT);
+			long size = 4;
+			for (Key k : keep) {
+				Record record = records.get(k);
+				byte[] payload = readPayload(record);
+				if (maxBytes > 0 && size + RECORD_HEADER_BYTES + payload.length > maxBytes) {
+					break;
+				}
+				out.writeLong(record.written);
+				out.write(k.bytes);
+				out.writeInt(payload.length);
+				out.write(payload);
+				size += RECORD_HEADER_BYTES + payload.length;
+			}
+		} finally {
+			out.close();
+			file.close();
+		}
+		if (!compacted.renameTo(store)) {
+			store.delete();
+			if (!compacted.renameTo(store)) {
+				throw new IOException("cannot replace cache store " + store);
+			}
+		}
+	}
+
+	/**
+	 * the stored form of a format version, which also changes with
+	 * the report columns, so that rows stored before a
+	 * PatternDetector was installed or removed are not reused
+	 */
+	static int format(int version) {
+		return 31 * version + PatternList.getHeader().hashCode();
+	}
+
+	/** prints the hit/miss counters for the run **/
+	public void printStatistics() {
+		long h = getHits();
+		long m = getMisses();
+		System.err.println("result cache: " + h + " hits, " + m + " misses");
+	}
+
+	/** indexes the records already in the store **/
+	private void load() throws IOException {
+		if (file.length() == 0) {
+			file.writeInt(FORMAT);
+			end = 4;
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(store)));
+		long position = 4;
+		try {
+			if (in.readInt() != FORMAT) {
+				// results from an older analyser - start afresh
+				file.setLength(0);
+				file.writeInt(FORMAT);
+				end = 4;
+				return;
+			}
+			while (position + RECORD_HEADER_BYTES <= file.length()) {
+				long written = in.readLong();
+				byte[] key = new byte[KEY_BYTES];
+				in.readFully(key);
+				int length = in.readInt();
+				if (position + RECORD_HEADER_BYTES + length > file.length()) {
+					break;
+				}
+				in.skipBytes(length);
+				records.put(new Key(key), new Record(position
+						+ RECORD_HEADER_BYTES, length, written));
+				position += RECORD_HEADER_BYTES + length;
+			}
+		} catch (EOFException e) {
+			// fall through and truncate
+		} finally {
+			in.close();
+		}
+		// drop any record cut short by a crash mid-append
+		if (file.length() > position) {
+			file.setLength(position);
+		}
+		end = position;
+	}
+
+	/** a positional read, so needs no lock **/
+	private byte[] readPayload(Record record) throws IOException {
+		ByteBuffer payload = ByteBuffer.allocate(record.length);
+		while (payload.hasRemaining()) {
+			if (channel.read(payload, record.offset + payload.position()) < 0) {
+				throw new EOFException("cache store truncated: " + store);
+			}
+		}
+		return payload.array();
+	}
+
+	static byte[] encodeRows(List<PatternList> rows) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(rows.size());
+		for (PatternList row : rows) {
+			out.writeUTF(row.className);
+			out.writeUTF(row.methodName);
+			out.writeUTF(row.methodDesc);
+			out.writeInt(row.numInstrs);
+			out.writeLong(row.getMask() & ~(1L << PatternList.POLYMORPHIC));
+			CallSummary calls = row.calls;
+			out.writeBoolean(calls != null);
+			if (calls != null) {
+				out.writeBoolean(calls.isInterfaceCall());
+				String[] callees = calls.getVirtualCallees();
+				out.writeInt(callees.length);
+				for (String callee : callees) {
+					out.writeUTF(callee);
+				}
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	static List<PatternList> decodeRows(byte[] payload)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		int count = in.readInt();
+		List<PatternList> rows = new ArrayList<PatternList>(count);
+		for (int i = 0; i < count; i++) {
+			PatternList row = new PatternList();
+			row.className = in.readUTF();
+			row.methodName = in.readUTF();
+			row.methodDesc = in.readUTF();
+			row.numInstrs = in.readInt();
+			row.setMask(in.readLong());
+			if (in.readBoolean()) {
+				boolean interfaceCall = in.readBoolean();
+				String[] callees = new String[in.readInt()];
+				for (int j = 0; j < callees.length; j++) {
+					callees[j] = in.readUTF();
+				}
+				row.calls = new CallSummary(interfaceCall, callees);
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/** where a payload is in the store, and when it was written **/
+	private static final class Record {
+		final long offset;
+		final int length;
+		long written;
+
+		Record(long offset, int length, long written) {
+			this.offset = offset;
+			this.length = length;
+			this.written = written;
+		}
+	}
+
+	/** hash key with value equality, for use in maps **/
+	static final class Key {
+		final byte[] bytes;
+		private final int hash;
+
+		Key(byte[] bytes) {
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode(bytes);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(bytes, ((Key) o).bytes);
+		}
+	}
+
+}
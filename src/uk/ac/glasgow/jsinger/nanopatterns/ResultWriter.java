@@ -0,0 +1,20 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.IOException;
+
+/**
+ * Destination for the result rows of a run. Rows arrive in report
+ * order, always from the same thread.
+ */
+public interface ResultWriter {
+
+	/** writes one method's row **/
+	void write(PatternList resultList) throws IOException;
+
+	/** pushes any buffered rows out to the output **/
+	void flush() throws IOException;
+
+	/** flushes any buffered rows and releases the output **/
+	void close() throws IOException;
+
+}
@@ -0,0 +1,172 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What an incremental directory scan saw last time: for each class
+ * file, its size, modification time, content hash and result rows.
+ * Files whose size and time are unchanged are not even read again;
+ * touched files whose hash is unchanged are not re-analysed. Either
+ * way the polymorphic pattern is resolved afresh from the rows'
+ * CallSummary, as in ResultCache.
+ * Files not seen by this run's scans are dropped when it is saved.
+ *
+ * manifest file:
+ *   int version, int entry count
+ *   entries UTF path, long size, long modified time, 20 byte hash,
+ *           int payload length, payload (rows, as in ResultCache)
+ */
+public class ScanManifest {
+
+	/** bump whenever the row encoding or pattern semantics change **/
+	private static final int FORMAT_VERSION = 8;
+
+	/** as stored: the version, mixed with the report columns **/
+	private static final int FORMAT = ResultCache.format(FORMAT_VERSION);
+
+	private final File file;
+
+	/** entries loaded from the last run, by path **/
+	private final Map<String, Entry> previous = new HashMap<String, Entry>();
+
+	/** entries for the files seen in this run, in scan order **/
+	private final Map<String, Entry> current = new LinkedHashMap<String, Entry>();
+
+	private long unchanged;
+	private long analysed;
+
+	/** loads the manifest, or starts an empty one if there is none **/
+	public ScanManifest(File file) throws IOException {
+		this.file = file;
+		if (file.isFile()) {
+			load();
+		}
+	}
+
+	/**
+	 * the rows recorded for the file, if its size and modified
+	 * time still match, otherwise null
+	 */
+	public synchronized List<PatternList> getUnchanged(String path, long size,
+			long modified) throws IOException {
+		Entry entry = previous.get(path);
+		if (entry == null || entry.size != size || entry.modified != modified) {
+			return null;
+		}
+		current.put(path, entry);
+		unchanged++;
+		return ResultCache.decodeRows(entry.payload);
+	}
+
+	/**
+	 * the rows recorded for the file, if its contents are unchanged
+	 * though it has been touched, otherwise null
+	 */
+	public synchronized List<PatternList> getSameContents(String path, long size,
+			long modified, byte[] hash) throws IOException {
+		Entry entry = previous.get(path);
+		if (entry == null || !Arrays.equals(entry.hash, hash)) {
+			return null;
+		}
+		current.put(path, new Entry(size, modified, hash, entry.payload));
+		unchanged++;
+		return ResultCache.decodeRows(entry.payload);
+	}
+
+	/** records the rows of a new or changed file **/
+	public synchronized void put(String path, long size, long modified,
+			byte[] hash, List<PatternList> rows) throws IOException {
+		current.put(path, new Entry(size, modified, hash,
+				ResultCache.encodeRows(rows)));
+		analysed++;
+	}
+
+	/** prints how many files were reused and re-analysed **/
+	public synchronized void printStatistics() {
+		System.err.println("incremental scan: " + unchanged + " unchanged, "
+				+ analysed + " new or changed class files");
+	}
+
+	/** writes the entries seen in this run **/
+	public synchronized void save() throws IOException {
+		File saved = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(saved), 1 << 16));
+		try {
+			out.writeInt(FORMAT);
+			out.writeInt(current.size());
+			for (Map.Entry<String, Entry> e : current.entrySet()) {
+				Entry entry = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeLong(entry.size);
+				out.writeLong(entry.modified);
+				out.write(entry.hash);
+				out.writeInt(entry.payload.length);
+				out.write(entry.payload);
+			}
+		} finally {
+			out.close();
+		}
+		if (!saved.renameTo(file)) {
+			file.delete();
+			if (!saved.renameTo(file)) {
+				throw new IOException("cannot replace manifest " + file);
+			}
+		}
+	}
+
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != FORMAT) {
+				// written by an older analyser - rescan everything
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long size = in.readLong();
+				long modified = in.readLong();
+				byte[] hash = new byte[20];
+				in.readFully(hash);
+				byte[] payload = new byte[in.readInt()];
+				in.readFully(payload);
+				previous.put(path, new Entry(size, modified, hash, payload));
+			}
+		} catch (EOFException e) {
+			// truncated manifest - rescan whatever it lost
+		} finally {
+			in.close();
+		}
+	}
+
+	private static class Entry {
+		final long size;
+		final long modified;
+		final byte[] hash;
+		/** rows, encoded as in ResultCache **/
+		final byte[] payload;
+
+		Entry(long size, long modified, byte[] hash, byte[] payload) {
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+			this.payload = payload;
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.util.List;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.commons.EmptyVisitor;
+
+/**
+ * class scanner (asm-speak visitor) that spots nanopatterns while
+ * the ClassReader streams through the class, without building a
+ * ClassNode tree first.
+ * Each method is fed straight into its own FusedPatternSpotter,
+ * and its result row is produced as soon as the method's visitEnd
+ * fires, so nothing of the method survives beyond that row.
+ */
+public class StreamingPatternSpotter implements ClassVisitor {
+
+	/** name:desc of the only method to report, or null for all **/
+	private final String onlyMethod;
+
+	/** receives one row per method with bytecode **/
+	private final List<PatternList> results;
+
+	/** the patterns to compute, as a mask **/
+	private final long patterns;
+
+	private final EmptyVisitor empty;
+
+	/** abstract callee lookups, for the polymorphic pattern **/
+	private final HierarchyIndex hierarchy;
+
+	/** this thread's plugin detectors, or null when none are installed **/
+	private final PatternDispatcher dispatcher;
+
+	private String className;
+
+	/** whether rows carry a CallSummary **/
+	private boolean withCalls;
+
+	public StreamingPatternSpotter(String onlyMethod, List<PatternList> results) {
+		this(onlyMethod, results, PatternList.allColumns());
+	}
+
+	public StreamingPatternSpotter(String onlyMethod, List<PatternList> results,
+			long patterns) {
+		this(onlyMethod, results, patterns, HierarchyIndex.getShared());
+	}
+
+	public StreamingPatternSpotter(String onlyMethod, List<PatternList> results,
+			long patterns, HierarchyIndex hierarchy) {
+		this.onlyMethod = onlyMethod;
+		this.results = results;
+		this.patterns = patterns;
+		this.hierarchy = hierarchy;
+		this.empty = new EmptyVisitor();
+		this.dispatcher = PatternDispatcher.forCurrentThread(patterns);
+	}
+
+	/** attaches a CallSummary to each row, as for caching **/
+	public void recordCalls() {
+		withCalls = true;
+	}
+
+	public void visit(int version, int access, String name,
+			String signature, String superName, String[] interfaces) {
+		this.className = name;
+	}
+
+	public void visitSource(String source, String debug) {
+	}
+
+	public void visitOuterClass(String owner, String name, String desc) {
+	}
+
+	public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+		return null;
+	}
+
+	public void visitAttribute(Attribute attr) {
+	}
+
+	public void visitInnerClass(String name, String outerName,
+			String innerName, int access) {
+	}
+
+	public FieldVisitor visitField(int access, String name, String desc,
+			String signature, Object value) {
+		return null;
+	}
+
+	public MethodVisitor visitMethod(int access, String name, String desc,
+			String signature, String[] exceptions) {
+		if (onlyMethod != null && !onlyMethod.equals(name + ":" + desc)) {
+			return null;
+		}
+		return new MethodScanner(access, name, desc, exceptions != null
+				&& exceptions.length > 0);
+	}
+
+	public void visitEnd() {
+	}
+
+	/**
+	 * fused spotter for one method, which hands over its result
+	 * row when the method ends
+	 */
+	private class MethodScanner extends FusedPatternSpotter {
+
+		private final String methodName;
+		private final String methodDesc;
+		private final boolean throwsExceptions;
+
+		MethodScanner(int access, String methodName, String methodDesc,
+				boolean throwsExceptions) {
+			super(dispatcher == null ? empty : dispatcher, access, className,
+					methodName, methodDesc, patterns, hierarchy);
+			this.methodName = methodName;
+			this.methodDesc = methodDesc;
+			this.throwsExceptions = throwsExceptions;
+			if (withCalls) {
+				recordCalls();
+			}
+			if (dispatcher != null) {
+				dispatcher.startMethod(className, methodName, methodDesc);
+			}
+		}
+
+		// @Override
+		public void visitEnd() {
+			// abstract and native methods have no bytecode to report
+			if (getNumInstrs() > 0) {
+				PatternList resultList = TestPatternSpotter.newResultList(
+						className, methodName, methodDesc, throwsExceptions,
+						getNumInstrs());
+				report(resultList);
+				if (dispatcher != null) {
+					dispatcher.report(resultList);
+				}
+				resultList.setMask(resultList.getMask() & patterns);
+				results.add(resultList);
+			}
+		}
+	}
+
+}
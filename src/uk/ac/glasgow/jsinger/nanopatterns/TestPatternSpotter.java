@@ -8,8 +8,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -27,65 +36,172 @@ public class TestPatternSpotter {
 	public static final int ANALYSE_CLASS_FROM_CLASSPATH = 2;
 	public static final int ANALYSE_METHOD_FROM_CLASSPATH = 3;
 	public static final int TEST_MODE = 4;
+	public static final int ANALYSE_DIRECTORY = 5;
+
+	/**
+	 * Number of analysed classes each worker thread may run ahead
+	 * of the printer before scanning blocks
+	 */
+	private static final int CLASSES_IN_FLIGHT_PER_THREAD = 16;
+
+	/**
+	 * Threads listing directories for a directory scan, and how many
+	 * found paths may wait for analysis before listing blocks
+	 */
+	private static final int LISTING_THREADS = 4;
+	private static final int PATHS_IN_FLIGHT = 1024;
+
+	/**
+	 * Per-thread buffer that mapped jar entries are read into; each
+	 * class is fully analysed before the buffer is reused
+	 */
+	private static final ThreadLocal<byte[]> CLASS_BUFFER = new ThreadLocal<byte[]>();
+
+	/** Analyser mode for this run **/
+	private final int mode;
 
-	public static int mode;
-	
 	/** Argument - class or jar file, class or method name **/
-	private static String arg;
+	private final String arg;
+
+	/** Options and shared resources for the whole run **/
+	private final AnalysisOptions options;
+
+	public TestPatternSpotter(int mode, String arg, AnalysisOptions options) {
+		this.mode = mode;
+		this.arg = arg;
+		this.options = options;
+	}
 
 	public static void main(String[] args) {
 
 		if (args.length < 1) {
-			System.err.println("usage: java TestPatternSpotter classname\n (or) java TestPatternSpotter -help\n (or) java -jar np.jar classname|-help\n");
+			System.err.println("usage: java TestPatternSpotter [options] classname\n (or) java TestPatternSpotter -help\n (or) java -jar np.jar [options] classname|-help\n");
 			System.exit(-1);
 		}
 
 		if (args[0].equals("-help")) {
-			System.out.println("This program (either TestPatternSpotter class or \nnp.jar Java archive) detects fundamental nano-patterns in bytecode \nclass files. See the paper at \n  http://www.dcs.gla.ac.uk/~jsinger/pdfs/nanopatterns.pdf \nfor more details about nano-patterns.");
+			System.out.println("This program (either TestPatternSpotter class or \nnp.jar Java archive) detects fundamental nano-patterns in bytecode \nclass files. See the paper at \n  http://www.dcs.gla.ac.uk/~jsinger/pdfs/nanopatterns.pdf \nfor more details about nano-patterns.\n" + AnalysisOptions.USAGE);
 			System.exit(0);
 		}
 
-		System.out.println("class method typesig numInstrs noparams void recursive samename leaf objCreator thisInstanceFieldReader thisInstanceFieldWriter otherInstanceFieldReader otherInstanceFieldWriter staticFieldReader staticFieldWriter typeManipulator straightLine looper switcher exceptions localReader localWriter arrCreator arrReader arrWriter polymorphic singleReturner multipleReturner client jdkClient tailCaller");
-
-		for (int i = 0; i < args.length; i++) {
-
-			arg = args[i];
+		List<String> targets = new ArrayList<String>();
+		AnalysisOptions options;
+		try {
+			options = AnalysisOptions.parse(args, targets);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\n" + AnalysisOptions.USAGE);
+			System.exit(-1);
+			return;
+		}
 
-			if (arg.endsWith(".class")) {
-				mode = ANALYSE_CLASS_FILE;
-				analyseClassFile(arg);
-				continue;
+		// scanned jars and directories need not be on the class
+		// path, so make their classes visible to the abstract
+		// method lookups; archives nested in them or found under
+		// them are registered as the scan meets them
+		boolean lookups = (options.getAnalysedPatterns()
+				& (1L << PatternList.POLYMORPHIC)) != 0;
+		for (String arg : targets) {
+			if (lookups && isArchive(arg)) {
+				try {
+					options.hierarchy.addJar(arg);
+				} catch (IOException e) {
+					// reported when the jar itself is scanned
+				}
+			} else if (lookups && new File(arg).isDirectory()) {
+				options.hierarchy.addDirectory(new File(arg));
 			}
+		}
 
-			if (arg.endsWith(".jar")) {
-				mode = ANALYSE_JAR_FILE;
-				scanJar(arg);
-				continue;
+		if (options.serverPort >= 0) {
+			try {
+				new AnalysisServer(options).run();
+			} catch (IOException e) {
+				System.err.println("Server failed: " + e.getMessage());
+				System.exit(-1);
 			}
+			return;
+		}
 
-			if (arg.contains(":")) {
-				mode = ANALYSE_METHOD_FROM_CLASSPATH;
-				scanClassPath();
-				continue;
+		if (options.watchReport != null) {
+			List<File> directories = new ArrayList<File>();
+			for (String arg : targets) {
+				directories.add(new File(arg));
+			}
+			try {
+				new DirectoryWatcher(options, directories, new File(
+						options.watchReport)).run();
+			} catch (IOException e) {
+				System.err.println("Watch failed: " + e.getMessage());
+				System.exit(-1);
 			}
+			return;
+		}
+
+		try {
+			options.openWriter();
+		} catch (IOException e) {
+			System.err.println("Failed to open output: " + e.getMessage());
+			System.exit(-1);
+		}
+
+		for (String arg : targets) {
+			analyseTarget(arg, options);
+		}
+
+		options.close();
+	}
 
-			mode = ANALYSE_CLASS_FROM_CLASSPATH;
+	/**
+	 * Analyses one command line target: a class or jar file, a
+	 * directory, a class name or a name:desc method to find on the
+	 * class path
+	 */
+	public static void analyseTarget(String arg, AnalysisOptions options) {
 
-			if (arg.charAt(0) == 'L') {
-				arg = arg.substring(1, arg.length());
+		File directory = new File(arg);
+		if (directory.isDirectory()) {
+			TestPatternSpotter spotter = new TestPatternSpotter(
+					ANALYSE_DIRECTORY, arg, options);
+			if (options.manifest != null) {
+				spotter.scanDirectoryIncrementally(directory);
+			} else {
+				spotter.scanDirectory(directory);
 			}
-			arg = arg.replace(".", "/");
-			arg = arg.replace("\\", "/");
-			scanClassPath();
+			return;
 		}
 
+		if (arg.endsWith(".class")) {
+			new TestPatternSpotter(ANALYSE_CLASS_FILE, arg, options)
+					.analyseClassFile(arg);
+			return;
+		}
+
+		if (isArchive(arg)) {
+			new TestPatternSpotter(ANALYSE_JAR_FILE, arg, options)
+					.scanJar(arg);
+			return;
+		}
+
+		if (arg.contains(":")) {
+			new TestPatternSpotter(ANALYSE_METHOD_FROM_CLASSPATH, arg, options)
+					.scanClassPath();
+			return;
+		}
+
+		if (arg.charAt(0) == 'L') {
+			arg = arg.substring(1, arg.length());
+		}
+		arg = arg.replace(".", "/");
+		arg = arg.replace("\\", "/");
+		new TestPatternSpotter(ANALYSE_CLASS_FROM_CLASSPATH, arg, options)
+				.scanClassPath();
 	}
 
 	/** SCANNERS **/
 
-	public static void scanClassPath() {
+	public void scanClassPath() {
 		String list = System.getProperty("java.class.path");
-		for (String path : list.split(";")) {
+		for (String path : list.split(File.pathSeparator)) {
 			File thing = new File(path);
 			if (thing.isDirectory()) {
 				scanDirectory(thing);
@@ -97,77 +213,745 @@ public class TestPatternSpotter {
 		}
 	}
 
-	public static void scanDirectory(File directory) {
-		for (String entry : directory.list()) {
-			String path = directory.getPath() + "\\" + entry;
-			File thing = new File(path);
-			if (thing.isDirectory()) {
-				scanDirectory(thing);
-			} else if (thing.isFile() && path.endsWith(".class")) {
-				analyseClassFile(path);
-			} else if (thing.isFile() && path.endsWith(".jar")) {
-				scanJar(path);
+	/**
+	 * Analyses every class file and archive under the directory,
+	 * depth first and in name order. The tree is listed in the
+	 * background while the classes found so far are analysed, on the
+	 * worker pool if there is one, and rows are written in the order
+	 * the classes were found.
+	 */
+	public void scanDirectory(File directory) {
+		ForkJoinPool pool = options.pool;
+		DirectoryWalker walker = newWalker(directory);
+		LinkedList<Future<List<PatternList>>> pending = new LinkedList<Future<List<PatternList>>>();
+		LinkedList<String> pendingPaths = new LinkedList<String>();
+		try {
+			while (true) {
+				File thing;
+				try {
+					thing = walker.next();
+				} catch (IOException e) {
+					writePending(pending, pendingPaths, 0);
+					reportFailure(e.getMessage());
+					continue;
+				}
+				if (thing == null) {
+					break;
+				}
+				String path = thing.getPath();
+				if (!path.endsWith(".class")) {
+					writePending(pending, pendingPaths, 0);
+					scanJar(path);
+				} else if (pool == null) {
+					analyseClassFile(path);
+				} else {
+					pending.add(pool.submit(new ClassFileTask(path)));
+					pendingPaths.add(path);
+					writePending(pending, pendingPaths,
+							pool.getParallelism() * CLASSES_IN_FLIGHT_PER_THREAD);
+				}
+			}
+			writePending(pending, pendingPaths, 0);
+		} finally {
+			walker.close();
+			for (Future<List<PatternList>> f : pending) {
+				f.cancel(true);
+			}
+		}
+	}
+
+	private DirectoryWalker newWalker(File directory) {
+		return new DirectoryWalker(directory,
+				Math.max(LISTING_THREADS, options.threads), PATHS_IN_FLIGHT);
+	}
+
+	/**
+	 * writes the rows of the oldest pending class files until no
+	 * more than window are left
+	 */
+	private void writePending(LinkedList<Future<List<PatternList>>> pending,
+			LinkedList<String> paths, int window) {
+		while (pending.size() > window) {
+			String path = paths.removeFirst();
+			try {
+				writeResults(awaitResults(pending.removeFirst()));
+			} catch (IOException e) {
+				reportFailure("File was not found: " + path);
+			}
+		}
+	}
+
+	/**
+	 * Analyses every class file under the directory, in name order,
+	 * taking the rows of class files unchanged since the last scan
+	 * from the manifest instead of analysing them again
+	 */
+	public void scanDirectoryIncrementally(File directory) {
+		DirectoryWalker walker = newWalker(directory);
+		try {
+			while (true) {
+				File thing;
+				try {
+					thing = walker.next();
+				} catch (IOException e) {
+					reportFailure(e.getMessage());
+					continue;
+				}
+				if (thing == null) {
+					break;
+				}
+				String path = thing.getPath();
+				if (!path.endsWith(".class")) {
+					scanJar(path);
+				} else {
+					try {
+						writeResults(analyseClassFileIncrementally(thing));
+					} catch (IOException e) {
+						reportFailure("File was not found: " + path);
+					}
+				}
 			}
+		} finally {
+			walker.close();
 		}
 	}
 
-	public static void scanJar(String path) {
+	private List<PatternList> analyseClassFileIncrementally(File file)
+			throws IOException {
+		ScanManifest manifest = options.manifest;
+		String path = file.getAbsolutePath();
+		long size = file.length();
+		long modified = file.lastModified();
+		List<PatternList> results = manifest.getUnchanged(path, size, modified);
+		if (results != null) {
+			refreshPolymorphic(results);
+			return results;
+		}
+		FileInputStream is = new FileInputStream(file);
+		byte[] classBytes;
 		try {
-			JarFile jar = new JarFile(path);
+			classBytes = readClassTimed(is);
+		} finally {
+			is.close();
+		}
+		byte[] hash = ResultCache.hash(classBytes);
+		results = manifest.getSameContents(path, size, modified, hash);
+		if (results != null) {
+			refreshPolymorphic(results);
+			return results;
+		}
+		try {
+			results = analyseClassBytes(classBytes);
+		} catch (RuntimeException e) {
+			// unreadable class, as for analyseInputStream
+			results = new ArrayList<PatternList>();
+		}
+		manifest.put(path, size, modified, hash, results);
+		return results;
+	}
+
+	/**
+	 * Analyses every class in the jar. With a worker pool, class
+	 * entries are fanned out to the pool and their rows are printed
+	 * back in jar order as each class completes.
+	 */
+	public void scanJar(String path) {
+		MappedJarReader mapped = null;
+		if (options.mmap) {
+			try {
+				mapped = new MappedJarReader(path);
+			} catch (IOException e) {
+				// e.g. zip64 or over 2GB - let JarFile read it instead
+			}
+		}
+		try {
+			if (mapped != null) {
+				scanMappedJar(path, mapped);
+			} else {
+				scanJarFile(path);
+			}
+		} catch (IOException e) {
+			reportFailure("Failed to open following JAR file: " + path);
+		}
+	}
+
+	private void scanJarFile(String path) throws IOException {
+		JarFile jar = new JarFile(path);
+		LinkedList<Future<List<PatternList>>> pending = new LinkedList<Future<List<PatternList>>>();
+		try {
+			if (registersArchives()) {
+				options.hierarchy.addJar(path);
+			}
 			Enumeration<JarEntry> enums = jar.entries();
 			while (enums.hasMoreElements()) {
 				JarEntry file = enums.nextElement();
-				if (!file.isDirectory() && file.getName().endsWith(".class")) {
-					analyseInputStream(jar.getInputStream(file));
+				if (file.isDirectory()) {
+					continue;
+				}
+				if (file.getName().endsWith(".class")) {
+					submitInOrder(new JarEntryTask(jar, file), pending);
+				} else if (isArchive(file.getName())) {
+					writeOldest(pending, 0);
+					// inner archives are read into memory, never to disk
+					String name = path + "!/" + file.getName();
+					MappedJarReader inner;
+					InputStream is = jar.getInputStream(file);
+					try {
+						inner = new MappedJarReader(
+								ByteBuffer.wrap(readClass(is)), name);
+					} catch (IOException e) {
+						reportFailure("Failed to open following nested archive: " + name);
+						continue;
+					} finally {
+						is.close();
+					}
+					scanMappedJar(name, inner);
 				}
 			}
+			writeOldest(pending, 0);
+		} finally {
 			jar.close();
+			for (Future<List<PatternList>> f : pending) {
+				f.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Analyses the classes of the archive in entry order, and the
+	 * archives nested in it where they occur. STORED inner archives
+	 * are read in place from the outer one; compressed ones are
+	 * inflated into memory. Each inner archive is opened only once
+	 * the rows before it are written, and released when its own are,
+	 * so at most one is held at a time.
+	 */
+	private void scanMappedJar(String path, MappedJarReader jar) throws IOException {
+		LinkedList<Future<List<PatternList>>> pending = new LinkedList<Future<List<PatternList>>>();
+		try {
+			if (registersArchives()) {
+				options.hierarchy.addArchive(path, jar);
+			}
+			for (int i = 0; i < jar.getEntryCount(); i++) {
+				if (jar.isDirectory(i)) {
+					continue;
+				}
+				if (jar.getName(i).endsWith(".class")) {
+					submitInOrder(new MappedEntryTask(jar, i), pending);
+				} else if (isArchive(jar.getName(i))) {
+					writeOldest(pending, 0);
+					String name = path + "!/" + jar.getName(i);
+					MappedJarReader inner;
+					try {
+						inner = jar.openNested(i, name);
+					} catch (IOException e) {
+						reportFailure("Failed to open following nested archive: " + name);
+						continue;
+					}
+					scanMappedJar(name, inner);
+				}
+			}
+			writeOldest(pending, 0);
+		} finally {
+			jar.close();
+			for (Future<List<PatternList>> f : pending) {
+				f.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * are the scanned archives wanted by the abstract method lookups?
+	 * Each is registered as it is met, as the directory scan meets
+	 * archives only as it lists them.
+	 */
+	private boolean registersArchives() {
+		return (options.getAnalysedPatterns()
+				& (1L << PatternList.POLYMORPHIC)) != 0;
+	}
+
+	/** jars, and the wars and ears that bundle them **/
+	static boolean isArchive(String name) {
+		return name.endsWith(".jar") || name.endsWith(".war")
+				|| name.endsWith(".ear");
+	}
+
+	/**
+	 * Runs the task, on the worker pool if there is one, keeping no
+	 * more than the in-flight window of tasks pending; rows are
+	 * written in the order the tasks were submitted
+	 */
+	private void submitInOrder(Callable<List<PatternList>> task,
+			LinkedList<Future<List<PatternList>>> pending) throws IOException {
+		ForkJoinPool pool = options.pool;
+		if (pool == null) {
+			writeResults(call(task));
+			return;
+		}
+		pending.add(pool.submit(task));
+		writeOldest(pending, pool.getParallelism() * CLASSES_IN_FLIGHT_PER_THREAD);
+	}
+
+	/**
+	 * writes the rows of the oldest pending tasks until no more than
+	 * window are left
+	 */
+	private void writeOldest(LinkedList<Future<List<PatternList>>> pending,
+			int window) throws IOException {
+		while (pending.size() > window) {
+			writeResults(awaitResults(pending.removeFirst()));
+		}
+	}
+
+	private static List<PatternList> call(Callable<List<PatternList>> task)
+			throws IOException {
+		try {
+			return task.call();
 		} catch (IOException e) {
-			System.out.println("Failed to open following JAR file: " + path);
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Analyses a single jar entry on a worker thread
+	 */
+	private class JarEntryTask implements Callable<List<PatternList>> {
+
+		private final JarFile jar;
+		private final JarEntry entry;
+
+		JarEntryTask(JarFile jar, JarEntry entry) {
+			this.jar = jar;
+			this.entry = entry;
+		}
+
+		public List<PatternList> call() throws IOException {
+			return analyseInputStream(jar.getInputStream(entry));
+		}
+	}
+
+	/**
+	 * Analyses a single class file on a worker thread
+	 */
+	private class ClassFileTask implements Callable<List<PatternList>> {
+
+		private final String path;
+
+		ClassFileTask(String path) {
+			this.path = path;
+		}
+
+		public List<PatternList> call() throws IOException {
+			return analyseInputStream(new FileInputStream(path));
+		}
+	}
+
+	/**
+	 * Analyses a single entry of a mapped jar, reading it into the
+	 * running thread's class buffer
+	 */
+	private class MappedEntryTask implements Callable<List<PatternList>> {
+
+		private final MappedJarReader jar;
+		private final int entry;
+
+		MappedEntryTask(MappedJarReader jar, int entry) {
+			this.jar = jar;
+			this.entry = entry;
+		}
+
+		public List<PatternList> call() throws IOException {
+			AnalysisStats stats = options.stats;
+			long start = (stats == null) ? 0 : System.nanoTime();
+			byte[] buffer = jar.read(entry, CLASS_BUFFER.get());
+			CLASS_BUFFER.set(buffer);
+			if (stats != null) {
+				stats.addRead(start, jar.getSize(entry));
+			}
+			try {
+				return analyseClassBytes(buffer, jar.getSize(entry));
+			} catch (RuntimeException e) {
+				// unreadable class, as for analyseInputStream
+				return new ArrayList<PatternList>();
+			}
+		}
+	}
+
+	private static List<PatternList> awaitResults(Future<List<PatternList>> f)
+			throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for analysis");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
 		}
 	}
 
 	/** ANALYSERS **/
 
-	public static void analyseClassFile(String path) {
+	public void analyseClassFile(String path) {
 		try {
 			FileInputStream f = new FileInputStream(path);
-			analyseInputStream(f);
+			writeResults(analyseInputStream(f));
 		} catch (IOException e) {
-			System.out.println("File was not found: " + path);
+			reportFailure("File was not found: " + path);
 		}
 	}
 
-	public static void analyseInputStream(InputStream is) {
+	/**
+	 * Analyses every method of the class read from the stream,
+	 * returning one row per reported method, in class file order.
+	 * Safe to call concurrently.
+	 */
+	public List<PatternList> analyseInputStream(InputStream is) {
 		try {
-			ClassReader cr = new ClassReader(is);
-			ClassNode cn = new ClassNode();
-			cr.accept(cn, ClassReader.SKIP_DEBUG);
+			return analyseClassBytes(readClassTimed(is));
+		} catch (IOException e) {
+			return new ArrayList<PatternList>();
+		} finally {
+			try {
+				is.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Analyses a class file held in memory, consulting the result
+	 * cache first when the run has one
+	 */
+	public List<PatternList> analyseClassBytes(byte[] classBytes)
+			throws IOException {
+		return analyseClassBytes(classBytes, classBytes.length);
+	}
+
+	/**
+	 * As analyseClassBytes, for a class file held in the first
+	 * length bytes of a larger buffer. With deduplication on, the
+	 * bytes are hashed before they are parsed, and a copy of an
+	 * earlier class reuses its rows.
+	 */
+	public List<PatternList> analyseClassBytes(byte[] classBytes, int length)
+			throws IOException {
+		String onlyMethod = (mode == ANALYSE_METHOD_FROM_CLASSPATH) ? arg : null;
+
+		ResultCache cache = options.cache;
+		ClassDeduplicator dedup = options.dedup;
+		if (cache == null && dedup == null) {
+			ClassReader cr = newClassReader(classBytes, length);
+			if (!isSelected(cr.getClassName())) {
+				return new ArrayList<PatternList>();
+			}
+			return analyseClass(cr, length, onlyMethod);
+		}
+
+		byte[] key = ResultCache.hash(classBytes, 0, length);
+		List<PatternList> results = (dedup == null) ? null : dedup.get(key, length);
+		if (results == null) {
+			ClassReader cr = newClassReader(classBytes, length);
+			if (!isSelected(cr.getClassName())) {
+				return new ArrayList<PatternList>();
+			}
+			results = (cache == null) ? null : cache.get(key);
+			if (results == null) {
+				// keep every method, whichever ones this scan reports
+				results = analyseClass(cr, length, null);
+				if (cache != null) {
+					cache.put(key, results);
+				}
+			} else {
+				refreshPolymorphic(results);
+			}
+			if (dedup != null) {
+				dedup.put(key, results);
+			}
+		} else if (!results.isEmpty() && !isSelected(results.get(0).className)) {
+			return new ArrayList<PatternList>();
+		}
+
+		if (onlyMethod == null) {
+			return results;
+		}
+		List<PatternList> selected = new ArrayList<PatternList>();
+		for (PatternList resultList : results) {
+			if (onlyMethod.equals(resultList.methodName + ":" + resultList.methodDesc)) {
+				selected.add(resultList);
+			}
+		}
+		return selected;
+	}
+
+	private boolean reportsPolymorphic() {
+		return (options.patterns & (1L << PatternList.POLYMORPHIC)) != 0;
+	}
+
+	/**
+	 * Resolves the polymorphic pattern of rows taken from the cache
+	 * or the manifest afresh, as it also depends on the classes
+	 * called: from each row's CallSummary, without the class bytes
+	 */
+	private void refreshPolymorphic(List<PatternList> results) {
+		if (!reportsPolymorphic()) {
+			return;
+		}
+		for (PatternList resultList : results) {
+			resultList.set(PatternList.POLYMORPHIC, resultList.calls != null
+					&& resultList.calls.isPolymorphic(options.hierarchy));
+		}
+	}
+
+	/** does this scan report the named class? **/
+	private boolean isSelected(String className) {
+		return mode != ANALYSE_CLASS_FROM_CLASSPATH || className.equals(arg);
+	}
+
+	private ClassReader newClassReader(byte[] classBytes, int length) {
+		AnalysisStats stats = options.stats;
+		long start = (stats == null) ? 0 : System.nanoTime();
+		ClassReader cr = new ClassReader(classBytes, 0, length);
+		if (stats != null) {
+			stats.addTime(AnalysisStats.PARSE, start);
+		}
+		return cr;
+	}
+
+	/**
+	 * Runs the spotters over the class (length bytes long), or just
+	 * over the named method (name:desc) when onlyMethod is not null
+	 */
+	private List<PatternList> analyseClass(ClassReader cr, int length,
+			String onlyMethod) {
+		ClassAnalysisEvent event = null;
+		if (options.jfr) {
+			event = new ClassAnalysisEvent();
+			event.begin();
+		}
+		List<PatternList> results = analyseClass(cr, onlyMethod);
+		if (options.stats != null) {
+			options.stats.addClass(results);
+		}
+		if (event != null) {
+			event.end();
+			if (event.shouldCommit()) {
+				event.className = cr.getClassName();
+				event.bytes = length;
+				event.methods = results.size();
+				for (PatternList resultList : results) {
+					event.instructions += resultList.numInstrs;
+				}
+				event.commit();
+			}
+		}
+		return results;
+	}
+
+	private List<PatternList> analyseClass(ClassReader cr, String onlyMethod) {
+		List<PatternList> results = new ArrayList<PatternList>();
+		AnalysisStats stats = options.stats;
+		long start = (stats == null) ? 0 : System.nanoTime();
 
-			if (mode == ANALYSE_CLASS_FROM_CLASSPATH && !cn.name.equals(arg)) {
-				return;
+		// rows kept for later runs carry what polymorphic depends on
+		boolean recordCalls = options.cache != null || options.manifest != null;
+		if (options.stream) {
+			StreamingPatternSpotter spotter = new StreamingPatternSpotter(
+					onlyMethod, results, options.getAnalysedPatterns(),
+					options.hierarchy);
+			if (recordCalls) {
+				spotter.recordCalls();
 			}
+			cr.accept(spotter, ClassReader.SKIP_DEBUG);
+			if (stats != null) {
+				stats.addTime(AnalysisStats.SPOT, start);
+			}
+			return results;
+		}
 
-			List methods = cn.methods;
-			for (int i = 0; i < methods.size(); ++i) {
-				analyseMethod(cn, (MethodNode) methods.get(i));
+		ClassNode cn = new ClassNode();
+		cr.accept(cn, ClassReader.SKIP_DEBUG);
+		if (stats != null) {
+			stats.addTime(AnalysisStats.PARSE, start);
+			start = System.nanoTime();
+		}
+
+		long patterns = options.getAnalysedPatterns();
+		List<?> methods = cn.methods;
+		for (int i = 0; i < methods.size(); ++i) {
+			MethodNode method = (MethodNode) methods.get(i);
+			if (onlyMethod != null && !onlyMethod.equals(method.name + ":" + method.desc)) {
+				continue;
+			}
+			PatternList resultList = analyseMethod(cn, method, patterns,
+					options.hierarchy, recordCalls);
+			if (resultList != null) {
+				results.add(resultList);
 			}
+		}
+		if (stats != null) {
+			stats.addTime(AnalysisStats.SPOT, start);
+		}
+		return results;
+	}
+
+	/** reads a class file, counting it in the run's statistics **/
+	private byte[] readClassTimed(InputStream is) throws IOException {
+		AnalysisStats stats = options.stats;
+		long start = (stats == null) ? 0 : System.nanoTime();
+		byte[] classBytes = readClass(is);
+		if (stats != null) {
+			stats.addRead(start, classBytes.length);
+		}
+		return classBytes;
+	}
+
+	/** reads a whole class file into memory **/
+	private static byte[] readClass(InputStream is) throws IOException {
+		byte[] b = new byte[is.available() > 0 ? is.available() : 8192];
+		int len = 0;
+		while (true) {
+			int n = is.read(b, len, b.length - len);
+			if (n == -1) {
+				break;
+			}
+			len += n;
+			if (len == b.length) {
+				int next = is.read();
+				if (next == -1) {
+					break;
+				}
+				byte[] c = new byte[b.length * 2];
+				System.arraycopy(b, 0, c, 0, len);
+				b = c;
+				b[len++] = (byte) next;
+			}
+		}
+		if (len < b.length) {
+			byte[] c = new byte[len];
+			System.arraycopy(b, 0, c, 0, len);
+			b = c;
+		}
+		return b;
+	}
+
+	private void writeResults(List<PatternList> results) throws IOException {
+		AnalysisStats stats = options.stats;
+		long start = (stats == null) ? 0 : System.nanoTime();
+		for (PatternList resultList : results) {
+			options.writer.write(resultList);
+		}
+		if (stats != null) {
+			stats.addTime(AnalysisStats.WRITE, start);
+		}
+	}
+
+	/**
+	 * prints a failure in the report, after any rows still
+	 * buffered in the writer
+	 */
+	private void reportFailure(String message) {
+		try {
+			options.writer.flush();
 		} catch (IOException e) {
 		}
+		options.messages.println(message);
 	}
 
+	/**
+	 * Computes the nanopatterns of a single method. Returns null for
+	 * methods without bytecode (abstract or native). Holds no shared
+	 * state, so may run on several threads at once.
+	 */
 	public static PatternList analyseMethod(ClassNode cn, MethodNode method) {
+		return analyseMethod(cn, method, PatternList.allColumns());
+	}
+
+	/**
+	 * As analyseMethod, computing only the patterns in the mask;
+	 * the others are left 0. When none of them depends on the
+	 * instructions, the instructions are not visited at all.
+	 */
+	public static PatternList analyseMethod(ClassNode cn, MethodNode method,
+			long patterns) {
+		return analyseMethod(cn, method, patterns, HierarchyIndex.getShared());
+	}
+
+	/**
+	 * As analyseMethod, looking up abstract callees in the given
+	 * hierarchy index
+	 */
+	public static PatternList analyseMethod(ClassNode cn, MethodNode method,
+			long patterns, HierarchyIndex hierarchy) {
+		return analyseMethod(cn, method, patterns, hierarchy, false);
+	}
+
+	/**
+	 * As analyseMethod, attaching a CallSummary to the row when
+	 * recordCalls is set (and the polymorphic pattern is computed)
+	 */
+	static PatternList analyseMethod(ClassNode cn, MethodNode method,
+			long patterns, HierarchyIndex hierarchy, boolean recordCalls) {
 		try {
-			if (mode == ANALYSE_METHOD_FROM_CLASSPATH) {
-				String s = method.name + ":" + method.desc;
-				if (!arg.equals(s))
-					return null;
+			if (method.instructions.size() > 0) {
+				PatternList resultList = newResultList(cn, method);
+				PatternDispatcher dispatcher = PatternDispatcher.forCurrentThread(patterns);
+				if (dispatcher == null && (patterns & FusedPatternSpotter.PATTERNS) == 0) {
+					resultList.setMask(resultList.getMask() & patterns);
+					return resultList;
+				}
+				FusedPatternSpotter fps;
+				if (dispatcher == null) {
+					fps = new FusedPatternSpotter(new EmptyVisitor(),
+							method.access, cn.name, method.name, method.desc,
+							patterns, hierarchy);
+				} else {
+					dispatcher.startMethod(cn.name, method.name, method.desc);
+					fps = new FusedPatternSpotter(dispatcher, method.access,
+							cn.name, method.name, method.desc, patterns,
+							hierarchy);
+				}
+				if (recordCalls) {
+					fps.recordCalls();
+				}
+				for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn
+						.getNext()) {
+					insn.accept(fps);
+				}
+				fps.report(resultList);
+				if (dispatcher != null) {
+					dispatcher.report(resultList);
+				}
+				resultList.setMask(resultList.getMask() & patterns);
+				return resultList;
 			}
-	
+			return null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reference implementation of analyseMethod, feeding every
+	 * instruction through each of the separate pattern spotters.
+	 * Kept to check and benchmark FusedPatternSpotter against.
+	 */
+	public static PatternList analyseMethodWithSpotters(ClassNode cn,
+			MethodNode method) {
+		try {
 			RecursivePatternSpotter rps = new RecursivePatternSpotter(
 					new EmptyVisitor(), cn.name, method.name, method.desc);
 			OOAccessPatternSpotter ops = new OOAccessPatternSpotter(
-					new EmptyVisitor());
+					new EmptyVisitor(), method.access);
 			TypeManipulatorPatternSpotter tps = new TypeManipulatorPatternSpotter(
 					new EmptyVisitor());
 			ControlFlowPatternSpotter cps = new ControlFlowPatternSpotter(
@@ -179,20 +963,9 @@ public class TestPatternSpotter {
 			ReturnPatternSpotter retps = new ReturnPatternSpotter(
 					new EmptyVisitor());
 			MethodPatternSpotter mps = new MethodPatternSpotter(new EmptyVisitor());
-			// check following
-			// properties directly from
-			// method descriptor
-			boolean noParams = false;
-			boolean noReturn = false;
-			boolean throwsExceptions = false;
-			if (method.desc.startsWith("()")) {
-				noParams = true;
-			}
-			if (method.desc.endsWith(")V")) {
-				noReturn = true;
-			}
-			if (method.exceptions.size() > 0) {
-				throwsExceptions = true;
+			PatternDispatcher dispatcher = PatternDispatcher.forCurrentThread();
+			if (dispatcher != null) {
+				dispatcher.startMethod(cn.name, method.name, method.desc);
 			}
 			if (method.instructions.size() > 0) {
 				for (int j = 0; j < method.instructions.size(); ++j) {
@@ -202,44 +975,43 @@ public class TestPatternSpotter {
 					((AbstractInsnNode) insn).accept(tps);
 					((AbstractInsnNode) insn).accept(cps);
 					((AbstractInsnNode) insn).accept(aps);
+					((AbstractInsnNode) insn).accept(pps);
+					((AbstractInsnNode) insn).accept(retps);
 					((AbstractInsnNode) insn).accept(mps);
-	
-				}
-				int numInstrs = method.instructions.size();
-				System.out.print("" + cn.name + " " + method.name + " "
-						+ method.desc + " " + numInstrs);
-	
-				PatternList resultList = new PatternList();
-				resultList.noParams = noParams;
-				resultList.noReturn = noReturn;
-				resultList.isRecursive = rps.isRecursive();
-			    resultList.isSameNameCaller = rps.isSameNameCaller();
-			    resultList.isLeaf = rps.isLeaf();
-			    resultList.isObjectCreator = ops.isObjectCreator();
-			    resultList.isThisInstanceFieldReader = ops.isThisInstanceFieldReader();
-			    resultList.isThisInstanceFieldWriter = ops.isThisInstanceFieldWriter();
-			    resultList.isOtherInstanceFieldReader = ops.isOtherInstanceFieldReader();
-			    resultList.isOtherInstanceFieldWriter = ops.isOtherInstanceFieldWriter();
-			    resultList.isStaticFieldReader = ops.isStaticFieldReader();
-			    resultList.isStaticFieldWriter = ops.isStaticFieldWriter();
-			    resultList.isTypeManipulator = tps.isTypeManipulator();
-			    resultList.isStraightLineCode = cps.isStraightLineCode();
-			    resultList.isLoopingCode = cps.isLoopingCode();
-			    resultList.isSwitcher = cps.isSwitcher();
-			    resultList.throwsExceptions = throwsExceptions;
-			    resultList.isLocalVarReader = aps.isLocalVarReader();
-			    resultList.isLocalVarWriter = aps.isLocalVarWriter();
-			    resultList.isArrayCreator = aps.isArrayCreator();
-			    resultList.isArrayReader= aps.isArrayReader();
-			    resultList.isArrayWriter = aps.isArrayWriter();
-			    resultList.isPolymorphic = pps.isPolymorphic();
-			    resultList.isSingleReturner= retps.isSingleReturner();
-			    resultList.isMultipleReturner= retps.isMultipleReturner();
-			    resultList.isClient = mps.isClient();
-			    resultList.isJdkClient = mps.isJdkClient();
-			    resultList.isTailCaller = mps.isTailCaller();
-			    resultList.printResultsAsBooleans();
-				System.out.println("");
+					if (dispatcher != null) {
+						((AbstractInsnNode) insn).accept(dispatcher);
+					}
+
+				}
+				PatternList resultList = newResultList(cn, method);
+				resultList.set(PatternList.RECURSIVE, rps.isRecursive());
+			    resultList.set(PatternList.SAME_NAME_CALLER, rps.isSameNameCaller());
+			    resultList.set(PatternList.LEAF, rps.isLeaf());
+			    resultList.set(PatternList.OBJECT_CREATOR, ops.isObjectCreator());
+			    resultList.set(PatternList.THIS_INSTANCE_FIELD_READER, ops.isThisInstanceFieldReader());
+			    resultList.set(PatternList.THIS_INSTANCE_FIELD_WRITER, ops.isThisInstanceFieldWriter());
+			    resultList.set(PatternList.OTHER_INSTANCE_FIELD_READER, ops.isOtherInstanceFieldReader());
+			    resultList.set(PatternList.OTHER_INSTANCE_FIELD_WRITER, ops.isOtherInstanceFieldWriter());
+			    resultList.set(PatternList.STATIC_FIELD_READER, ops.isStaticFieldReader());
+			    resultList.set(PatternList.STATIC_FIELD_WRITER, ops.isStaticFieldWriter());
+			    resultList.set(PatternList.TYPE_MANIPULATOR, tps.isTypeManipulator());
+			    resultList.set(PatternList.STRAIGHT_LINE_CODE, cps.isStraightLineCode());
+			    resultList.set(PatternList.LOOPING_CODE, cps.isLoopingCode());
+			    resultList.set(PatternList.SWITCHER, cps.isSwitcher());
+			    resultList.set(PatternList.LOCAL_VAR_READER, aps.isLocalVarReader());
+			    resultList.set(PatternList.LOCAL_VAR_WRITER, aps.isLocalVarWriter());
+			    resultList.set(PatternList.ARRAY_CREATOR, aps.isArrayCreator());
+			    resultList.set(PatternList.ARRAY_READER, aps.isArrayReader());
+			    resultList.set(PatternList.ARRAY_WRITER, aps.isArrayWriter());
+			    resultList.set(PatternList.POLYMORPHIC, pps.isPolymorphic());
+			    resultList.set(PatternList.SINGLE_RETURNER, retps.isSingleReturner());
+			    resultList.set(PatternList.MULTIPLE_RETURNER, retps.isMultipleReturner());
+			    resultList.set(PatternList.CLIENT, mps.isClient());
+			    resultList.set(PatternList.JDK_CLIENT, mps.isJdkClient());
+			    resultList.set(PatternList.TAIL_CALLER, mps.isTailCaller());
+				if (dispatcher != null) {
+					dispatcher.report(resultList);
+				}
 				return resultList;
 			}
 			return null;
@@ -248,4 +1020,26 @@ public class TestPatternSpotter {
 		}
 	}
 
+	/**
+	 * Starts a result row for the method, filling in its identity
+	 * and the properties read directly from the method descriptor
+	 */
+	private static PatternList newResultList(ClassNode cn, MethodNode method) {
+		return newResultList(cn.name, method.name, method.desc,
+				method.exceptions.size() > 0, method.instructions.size());
+	}
+
+	static PatternList newResultList(String className, String methodName,
+			String methodDesc, boolean throwsExceptions, int numInstrs) {
+		PatternList resultList = new PatternList();
+		resultList.className = className;
+		resultList.methodName = methodName;
+		resultList.methodDesc = methodDesc;
+		resultList.numInstrs = numInstrs;
+		resultList.set(PatternList.NO_PARAMS, methodDesc.startsWith("()"));
+		resultList.set(PatternList.NO_RETURN, methodDesc.endsWith(")V"));
+		resultList.set(PatternList.THROWS_EXCEPTIONS, throwsExceptions);
+		return resultList;
+	}
+
 }
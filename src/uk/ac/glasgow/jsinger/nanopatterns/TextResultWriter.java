@@ -0,0 +1,141 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes the MP-tool style text report: a header line, then one
+ * line of 0/1 flags per method.
+ * Rows are encoded straight into a reusable byte buffer, which is
+ * only handed to the output stream once it is mostly full, so a
+ * whole batch of rows costs a single write. The bytes are exactly
+ * what printing each row to System.out would have produced.
+ */
+public class TextResultWriter implements ResultWriter {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** flush once the buffer is this full **/
+	private static final int FLUSH_THRESHOLD = BUFFER_SIZE - 4096;
+
+	private static final byte[] LINE_SEPARATOR = System.getProperty(
+			"line.separator").getBytes();
+
+	private final OutputStream out;
+	private final Charset charset;
+
+	/** the columns to print, as a pattern mask **/
+	private final long columns;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int count;
+
+	/** writes to standard output **/
+	public TextResultWriter() throws IOException {
+		this(System.out);
+	}
+
+	public TextResultWriter(OutputStream out) throws IOException {
+		this(out, PatternList.allColumns());
+	}
+
+	/** writes just the given columns (see PatternList.parseColumns) **/
+	public TextResultWriter(OutputStream out, long columns) throws IOException {
+		this.out = out;
+		this.charset = Charset.defaultCharset();
+		this.columns = columns;
+		appendString(PatternList.getHeader(columns));
+		appendLineSeparator();
+		flush();
+	}
+
+	public void write(PatternList resultList) throws IOException {
+		appendString(resultList.className);
+		appendByte(' ');
+		appendString(resultList.methodName);
+		appendByte(' ');
+		appendString(resultList.methodDesc);
+		appendByte(' ');
+		appendInt(resultList.numInstrs);
+		ensureCapacity(2 * Long.bitCount(columns));
+		long mask = resultList.getMask();
+		for (long left = columns; left != 0; left &= left - 1) {
+			int pattern = Long.numberOfTrailingZeros(left);
+			buffer[count++] = ' ';
+			buffer[count++] = (byte) (((mask >>> pattern) & 1) == 0 ? '0' : '1');
+		}
+		appendLineSeparator();
+		if (count >= FLUSH_THRESHOLD) {
+			flush();
+		}
+	}
+
+	public void flush() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		flush();
+	}
+
+	private void appendString(String s) {
+		int length = s.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				// rare non-ASCII name: let the charset encode it
+				appendBytes(s.substring(i).getBytes(charset));
+				return;
+			}
+			buffer[count++] = (byte) c;
+		}
+	}
+
+	private void appendInt(int value) {
+		if (value < 0) {
+			appendString(Integer.toString(value));
+			return;
+		}
+		ensureCapacity(10);
+		int start = count;
+		do {
+			buffer[count++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		// digits went in backwards
+		for (int i = start, j = count - 1; i < j; i++, j--) {
+			byte b = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = b;
+		}
+	}
+
+	private void appendByte(char c) {
+		ensureCapacity(1);
+		buffer[count++] = (byte) c;
+	}
+
+	private void appendBytes(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, count, bytes.length);
+		count += bytes.length;
+	}
+
+	private void appendLineSeparator() {
+		appendBytes(LINE_SEPARATOR);
+	}
+
+	private void ensureCapacity(int extra) {
+		if (count + extra > buffer.length) {
+			byte[] bigger = new byte[Math.max(buffer.length * 2, count + extra)];
+			System.arraycopy(buffer, 0, bigger, 0, count);
+			buffer = bigger;
+		}
+	}
+
+}
@@ -0,0 +1,520 @@
+package uk.ac.glasgow.jsinger.nanopatterns;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Single pass abstract interpretation of a method that only
+ * tracks which operand stack slots and local variables hold the
+ * "this" reference, so field accesses through this can be told
+ * apart from those through other objects.
+ * Slots are one int each (0 for anything else, with long and
+ * double values taking two), held in arrays that are only
+ * reallocated to grow. A slot holding this has the top bit set;
+ * its other bits name the locals it was read from at a label.
+ * Stack and locals are saved at forward jumps and merged where the
+ * paths meet, so a slot is this only if it is this on every path.
+ * Any label may turn out to be the target of a later backward
+ * jump, so a local read after a label only counts as this if the
+ * method never stores to it; since that is only known at the end,
+ * such accesses are resolved when the results are asked for.
+ * Code after a goto, return, throw or switch starts from an empty
+ * stack unless a jump saved a state for it; popping an empty stack
+ * yields other.
+ */
+final class ThisTracker implements Opcodes {
+
+	private static final int THIS = Integer.MIN_VALUE;
+	private static final int OTHER = 0;
+
+	/** locals past this many are never this after a label **/
+	private static final int TRACKED_LOCALS = 31;
+
+	/** marks a PUTFIELD among the undecided accesses **/
+	private static final int WRITE = Integer.MIN_VALUE;
+
+	/** words popped and pushed by each zero operand instruction **/
+	private static final byte[] POPS = new byte[256];
+	private static final byte[] PUSHES = new byte[256];
+
+	static {
+		effect(ACONST_NULL, 0, 1);
+		effect(ICONST_M1, ICONST_5, 0, 1);
+		effect(LCONST_0, LCONST_1, 0, 2);
+		effect(FCONST_0, FCONST_2, 0, 1);
+		effect(DCONST_0, DCONST_1, 0, 2);
+		effect(IALOAD, 2, 1);
+		effect(LALOAD, 2, 2);
+		effect(FALOAD, 2, 1);
+		effect(DALOAD, 2, 2);
+		effect(AALOAD, SALOAD, 2, 1);
+		effect(IASTORE, 3, 0);
+		effect(LASTORE, 4, 0);
+		effect(FASTORE, 3, 0);
+		effect(DASTORE, 4, 0);
+		effect(AASTORE, SASTORE, 3, 0);
+		effect(POP, 1, 0);
+		effect(POP2, 2, 0);
+		for (int opcode = IADD; opcode <= LXOR; opcode++) {
+			// int and float ops take two words, long and double four
+			boolean wide = ((opcode - IADD) & 1) == 1;
+			if (opcode >= INEG && opcode <= DNEG) {
+				effect(opcode, wide ? 2 : 1, wide ? 2 : 1);
+			} else if (opcode >= ISHL && opcode <= LUSHR) {
+				effect(opcode, wide ? 3 : 2, wide ? 2 : 1);
+			} else {
+				effect(opcode, wide ? 4 : 2, wide ? 2 : 1);
+			}
+		}
+		effect(I2L, 1, 2);
+		effect(I2F, 1, 1);
+		effect(I2D, 1, 2);
+		effect(L2I, 2, 1);
+		effect(L2F, 2, 1);
+		effect(L2D, 2, 2);
+		effect(F2I, 1, 1);
+		effect(F2L, 1, 2);
+		effect(F2D, 1, 2);
+		effect(D2I, 2, 1);
+		effect(D2L, 2, 2);
+		effect(D2F, 2, 1);
+		effect(I2B, I2S, 1, 1);
+		effect(LCMP, 4, 1);
+		effect(FCMPL, FCMPG, 2, 1);
+		effect(DCMPL, DCMPG, 4, 1);
+		effect(ARRAYLENGTH, 1, 1);
+		effect(MONITORENTER, MONITOREXIT, 1, 0);
+	}
+
+	private static void effect(int opcode, int pops, int pushes) {
+		effect(opcode, opcode, pops, pushes);
+	}
+
+	private static void effect(int first, int last, int pops, int pushes) {
+		for (int opcode = first; opcode <= last; opcode++) {
+			POPS[opcode] = (byte) pops;
+			PUSHES[opcode] = (byte) pushes;
+		}
+	}
+
+	private int[] stack = new int[16];
+	private int depth;
+
+	private int[] locals = new int[16];
+
+	/** false after an unconditional transfer, until the next label **/
+	private boolean reachable = true;
+
+	/** states saved by forward jumps, by target **/
+	private Map<Label, State> saved;
+
+	/** the locals stored to so far, one bit each **/
+	private int stored;
+
+	private boolean readsThis;
+	private boolean readsOther;
+	private boolean writesThis;
+	private boolean writesOther;
+
+	/** locals that make some undecided read or write an other one **/
+	private int readsOtherUnless;
+	private int writesOtherUnless;
+
+	/**
+	 * undecided accesses, as the locals whose storing makes them other
+	 * (plus WRITE for a PUTFIELD), each distinct value once
+	 */
+	private int[] undecided;
+	private int numUndecided;
+
+	ThisTracker(boolean isStatic) {
+		if (!isStatic) {
+			locals[0] = THIS;
+		}
+	}
+
+	boolean readsThisFields() {
+		return readsThis || anyStillThis(0);
+	}
+
+	boolean readsOtherFields() {
+		return readsOther || (readsOtherUnless & stored) != 0;
+	}
+
+	boolean writesThisFields() {
+		return writesThis || anyStillThis(WRITE);
+	}
+
+	boolean writesOtherFields() {
+		return writesOther || (writesOtherUnless & stored) != 0;
+	}
+
+	/** is some undecided access of the given kind through this after all? **/
+	private boolean anyStillThis(int kind) {
+		for (int i = 0; i < numUndecided; i++) {
+			int access = undecided[i];
+			if ((access & WRITE) == kind && (access & ~WRITE & stored) == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void insn(int opcode) {
+		switch (opcode) {
+		case DUP:
+			dup(1, 0);
+			break;
+		case DUP_X1:
+			dup(1, 1);
+			break;
+		case DUP_X2:
+			dup(1, 2);
+			break;
+		case DUP2:
+			dup(2, 0);
+			break;
+		case DUP2_X1:
+			dup(2, 1);
+			break;
+		case DUP2_X2:
+			dup(2, 2);
+			break;
+		case SWAP:
+			if (depth >= 2) {
+				int top = stack[depth - 1];
+				stack[depth - 1] = stack[depth - 2];
+				stack[depth - 2] = top;
+			}
+			break;
+		case IRETURN:
+		case LRETURN:
+		case FRETURN:
+		case DRETURN:
+		case ARETURN:
+		case RETURN:
+		case ATHROW:
+			depth = 0;
+			reachable = false;
+			break;
+		default:
+			pop(POPS[opcode]);
+			push(OTHER, PUSHES[opcode]);
+			break;
+		}
+	}
+
+	void intInsn(int opcode) {
+		if (opcode == NEWARRAY) {
+			pop(1);
+		}
+		push(OTHER, 1);
+	}
+
+	void varInsn(int opcode, int var) {
+		switch (opcode) {
+		case ILOAD:
+		case FLOAD:
+			push(OTHER, 1);
+			break;
+		case LLOAD:
+		case DLOAD:
+			push(OTHER, 2);
+			break;
+		case ALOAD:
+			push(var < locals.length ? locals[var] : OTHER, 1);
+			break;
+		case ASTORE:
+			store(var, depth > 0 ? stack[depth - 1] : OTHER);
+			pop(1);
+			break;
+		case ISTORE:
+		case FSTORE:
+			store(var, OTHER);
+			pop(1);
+			break;
+		case LSTORE:
+		case DSTORE:
+			store(var, OTHER);
+			store(var + 1, OTHER);
+			pop(2);
+			break;
+		case RET:
+			depth = 0;
+			reachable = false;
+			break;
+		default:
+			break;
+		}
+	}
+
+	void typeInsn(int opcode) {
+		switch (opcode) {
+		case NEW:
+			push(OTHER, 1);
+			break;
+		case CHECKCAST:
+			// still the same reference
+			break;
+		default:
+			// ANEWARRAY, INSTANCEOF
+			pop(1);
+			push(OTHER, 1);
+			break;
+		}
+	}
+
+	void fieldInsn(int opcode, String desc) {
+		int size = size(desc);
+		switch (opcode) {
+		case GETSTATIC:
+			push(OTHER, size);
+			break;
+		case PUTSTATIC:
+			pop(size);
+			break;
+		case GETFIELD:
+			access(depth > 0 ? stack[depth - 1] : OTHER, 0);
+			pop(1);
+			push(OTHER, size);
+			break;
+		default:
+			access(depth > size ? stack[depth - 1 - size] : OTHER, WRITE);
+			pop(1 + size);
+			break;
+		}
+	}
+
+	void iincInsn(int var) {
+		store(var, OTHER);
+	}
+
+	void methodInsn(int opcode, String desc) {
+		int words = 0;
+		int i = 1;
+		while (desc.charAt(i) != ')') {
+			char c = desc.charAt(i);
+			if (c == 'J' || c == 'D') {
+				words += 2;
+			} else {
+				words++;
+				while (desc.charAt(i) == '[') {
+					i++;
+				}
+				if (desc.charAt(i) == 'L') {
+					i = desc.indexOf(';', i);
+				}
+			}
+			i++;
+		}
+		pop(opcode == INVOKESTATIC ? words : words + 1);
+		char returned = desc.charAt(i + 1);
+		if (returned != 'V') {
+			push(OTHER, (returned == 'J' || returned == 'D') ? 2 : 1);
+		}
+	}
+
+	void jumpInsn(int opcode, Label label) {
+		if (opcode == GOTO) {
+			save(label);
+			depth = 0;
+			reachable = false;
+		} else if (opcode == JSR) {
+			// the subroutine returns to the next instruction
+		} else {
+			pop((opcode >= IF_ICMPEQ && opcode <= IF_ACMPNE) ? 2 : 1);
+			save(label);
+		}
+	}
+
+	void switchInsn(Label dflt, Label[] labels) {
+		pop(1);
+		save(dflt);
+		for (Label label : labels) {
+			save(label);
+		}
+		depth = 0;
+		reachable = false;
+	}
+
+	void label(Label label) {
+		State state = (saved == null) ? null : saved.remove(label);
+		if (state == null) {
+			if (!reachable) {
+				depth = 0;
+			}
+		} else if (!reachable) {
+			depth = 0;
+			for (int value : state.stack) {
+				push(value, 1);
+			}
+			for (int var = 0; var < locals.length; var++) {
+				locals[var] = var < state.locals.length ? state.locals[var] : OTHER;
+			}
+		} else {
+			for (int i = 0; i < depth && i < state.stack.length; i++) {
+				stack[i] = meet(stack[i], state.stack[i]);
+			}
+			for (int var = 0; var < locals.length; var++) {
+				locals[var] = meet(locals[var],
+						var < state.locals.length ? state.locals[var] : OTHER);
+			}
+		}
+		reachable = true;
+		// from here on a local holds this only if nothing stores to it
+		for (int var = 0; var < locals.length; var++) {
+			if (locals[var] != OTHER) {
+				locals[var] = (var < TRACKED_LOCALS) ? locals[var] | (1 << var)
+						: OTHER;
+			}
+		}
+	}
+
+	void ldcInsn(Object cst) {
+		push(OTHER, (cst instanceof Long || cst instanceof Double) ? 2 : 1);
+	}
+
+	void multiANewArrayInsn(int dims) {
+		pop(dims);
+		push(OTHER, 1);
+	}
+
+	/** copies the top words words, below the next under words **/
+	private void dup(int words, int under) {
+		if (depth < words + under) {
+			push(OTHER, words);
+			return;
+		}
+		ensureStack(depth + words);
+		int base = depth - words - under;
+		System.arraycopy(stack, base, stack, base + words, words + under);
+		System.arraycopy(stack, base + words + under, stack, base, words);
+		depth += words;
+	}
+
+	/**
+	 * remembers the stack and locals for a forward jump target,
+	 * combined with what other jumps there left
+	 */
+	private void save(Label label) {
+		if (saved == null) {
+			saved = new HashMap<Label, State>();
+		}
+		State state = saved.get(label);
+		if (state == null) {
+			int numLocals = locals.length;
+			while (numLocals > 0 && locals[numLocals - 1] == OTHER) {
+				numLocals--;
+			}
+			state = new State(new int[depth], new int[numLocals]);
+			System.arraycopy(stack, 0, state.stack, 0, depth);
+			System.arraycopy(locals, 0, state.locals, 0, numLocals);
+			saved.put(label, state);
+		} else {
+			for (int i = 0; i < state.stack.length && i < depth; i++) {
+				state.stack[i] = meet(state.stack[i], stack[i]);
+			}
+			for (int var = 0; var < state.locals.length; var++) {
+				state.locals[var] = meet(state.locals[var],
+						var < locals.length ? locals[var] : OTHER);
+			}
+		}
+	}
+
+	/** this on both paths, depending on what either depends on **/
+	private static int meet(int a, int b) {
+		return (a == OTHER || b == OTHER) ? OTHER : a | b;
+	}
+
+	/** records a field access through the given slot value **/
+	private void access(int owner, int kind) {
+		boolean write = kind == WRITE;
+		if (owner == OTHER) {
+			if (write) {
+				writesOther = true;
+			} else {
+				readsOther = true;
+			}
+			return;
+		}
+		int unless = owner & ~THIS;
+		if (unless == 0) {
+			if (write) {
+				writesThis = true;
+			} else {
+				readsThis = true;
+			}
+			return;
+		}
+		if (write) {
+			writesOtherUnless |= unless;
+		} else {
+			readsOtherUnless |= unless;
+		}
+		int access = unless | kind;
+		for (int i = 0; i < numUndecided; i++) {
+			if (undecided[i] == access) {
+				return;
+			}
+		}
+		if (undecided == null) {
+			undecided = new int[4];
+		} else if (numUndecided == undecided.length) {
+			int[] bigger = new int[numUndecided * 2];
+			System.arraycopy(undecided, 0, bigger, 0, numUndecided);
+			undecided = bigger;
+		}
+		undecided[numUndecided++] = access;
+	}
+
+	private void push(int value, int words) {
+		ensureStack(depth + words);
+		for (int i = 0; i < words; i++) {
+			stack[depth++] = value;
+		}
+	}
+
+	private void pop(int words) {
+		depth = Math.max(0, depth - words);
+	}
+
+	private void store(int var, int value) {
+		if (var < TRACKED_LOCALS) {
+			stored |= 1 << var;
+		}
+		if (var >= locals.length) {
+			int[] bigger = new int[Math.max(locals.length * 2, var + 1)];
+			System.arraycopy(locals, 0, bigger, 0, locals.length);
+			locals = bigger;
+		}
+		locals[var] = value;
+	}
+
+	private void ensureStack(int size) {
+		if (size > stack.length) {
+			int[] bigger = new int[Math.max(stack.length * 2, size)];
+			System.arraycopy(stack, 0, bigger, 0, depth);
+			stack = bigger;
+		}
+	}
+
+	private static int size(String desc) {
+		char c = desc.charAt(0);
+		return (c == 'J' || c == 'D') ? 2 : 1;
+	}
+
+	/** stack and locals at a forward jump **/
+	private static final class State {
+		final int[] stack;
+		final int[] locals;
+
+		State(int[] stack, int[] locals) {
+			this.stack = stack;
+			this.locals = locals;
+		}
+	}
+
+}